@@ -0,0 +1,111 @@
+package net.edithymaster.emage.Processing;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class BaselineComparator {
+
+    private BaselineComparator() {}
+
+    private static final double REGRESSION_THRESHOLD = 0.10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparator <jmh-result.json> <baseline.json> [--update]");
+            System.exit(2);
+        }
+
+        Path resultPath = Path.of(args[0]);
+        Path baselinePath = Path.of(args[1]);
+        boolean update = args.length > 2 && args[2].equals("--update");
+
+        Map<String, Entry> current = read(resultPath);
+        Map<String, Entry> baseline = Files.exists(baselinePath) ? read(baselinePath) : Map.of();
+
+        System.out.printf("%-58s %12s %12s %8s %10s %10s%n",
+                "benchmark", "tiles/s", "baseline", "delta", "ns/tile", "B/tile");
+
+        int regressions = 0;
+        for (Map.Entry<String, Entry> e : new TreeMap<>(current).entrySet()) {
+            Entry cur = e.getValue();
+            Entry base = baseline.get(e.getKey());
+
+            String baseStr = base != null ? String.format("%.0f", base.score) : "-";
+            String deltaStr = "-";
+            if (base != null && base.score > 0) {
+                double delta = (cur.score - base.score) / base.score;
+                deltaStr = String.format("%+.1f%%", delta * 100);
+                if (delta < -REGRESSION_THRESHOLD) {
+                    deltaStr += " !";
+                    regressions++;
+                }
+            }
+
+            System.out.printf("%-58s %12.0f %12s %8s %10.0f %10s%n",
+                    e.getKey(), cur.score, baseStr, deltaStr,
+                    cur.score > 0 ? 1e9 / cur.score : 0,
+                    cur.allocPerOp >= 0 ? String.format("%.0f", cur.allocPerOp) : "-");
+        }
+
+        if (update) {
+            Files.copy(resultPath, baselinePath, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Baseline updated: " + baselinePath);
+        } else if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than "
+                    + (int) (REGRESSION_THRESHOLD * 100) + "% against the baseline");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Entry> read(Path path) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+
+        JsonArray runs;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            runs = JsonParser.parseReader(reader).getAsJsonArray();
+        }
+
+        for (JsonElement el : runs) {
+            JsonObject run = el.getAsJsonObject();
+            String name = run.get("benchmark").getAsString();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+
+            StringBuilder key = new StringBuilder(name);
+            if (run.has("params")) {
+                Map<String, String> params = new TreeMap<>();
+                for (Map.Entry<String, JsonElement> p : run.getAsJsonObject("params").entrySet()) {
+                    params.put(p.getKey(), p.getValue().getAsString());
+                }
+                params.forEach((k, v) -> key.append(' ').append(k).append('=').append(v));
+            }
+
+            double score = run.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+            double alloc = -1;
+            if (run.has("secondaryMetrics")) {
+                for (Map.Entry<String, JsonElement> m : run.getAsJsonObject("secondaryMetrics").entrySet()) {
+                    if (m.getKey().endsWith("gc.alloc.rate.norm")) {
+                        alloc = m.getValue().getAsJsonObject().get("score").getAsDouble();
+                    }
+                }
+            }
+
+            entries.put(key.toString(), new Entry(score, alloc));
+        }
+
+        return entries;
+    }
+
+    private record Entry(double score, double allocPerOp) {}
+}
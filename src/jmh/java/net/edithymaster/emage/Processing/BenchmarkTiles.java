@@ -0,0 +1,121 @@
+package net.edithymaster.emage.Processing;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+final class BenchmarkTiles {
+
+    private BenchmarkTiles() {}
+
+    private static final int SIZE = EmageCore.MAP_WIDTH;
+
+    // Anything that isn't a built-in pattern name is treated as a path to an image on disk,
+    // e.g. -p tile=/home/me/tiles/spawn_mural.png, and is resized to 128x128 like a real upload.
+    static int[] load(String name) throws IOException {
+        return switch (name) {
+            case "gradient" -> gradient();
+            case "noise" -> noise(42L);
+            case "flat" -> flat(0xFF6A8CAF);
+            case "photo" -> photo(7L);
+            case "sprite" -> sprite();
+            default -> fromFile(new File(name));
+        };
+    }
+
+    static int[] moveSprite(int[] base, int offset) {
+        int[] moved = base.clone();
+        int x0 = 40 + offset;
+        int y0 = 56;
+        for (int y = y0; y < y0 + 16; y++) {
+            for (int x = x0; x < x0 + 16; x++) {
+                moved[y * SIZE + x] = ((x + y) & 4) == 0 ? 0xFFE0C040 : 0xFF202060;
+            }
+        }
+        return moved;
+    }
+
+    private static int[] gradient() {
+        int[] px = new int[EmageCore.MAP_SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int r = x * 2;
+                int g = y * 2;
+                int b = 255 - (x + y);
+                px[y * SIZE + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return px;
+    }
+
+    private static int[] noise(long seed) {
+        Random random = new Random(seed);
+        int[] px = new int[EmageCore.MAP_SIZE];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = 0xFF000000 | (random.nextInt() & 0xFFFFFF);
+        }
+        return px;
+    }
+
+    private static int[] flat(int argb) {
+        int[] px = new int[EmageCore.MAP_SIZE];
+        java.util.Arrays.fill(px, argb);
+        return px;
+    }
+
+    private static int[] photo(long seed) {
+        Random random = new Random(seed);
+        int[] px = new int[EmageCore.MAP_SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                double sky = Math.max(0, 1.0 - y / 70.0);
+                double hill = Math.sin(x / 18.0) * 10 + 80;
+                int r, g, b;
+                if (y < hill) {
+                    r = (int) (90 + sky * 80);
+                    g = (int) (140 + sky * 70);
+                    b = (int) (200 + sky * 50);
+                } else {
+                    r = 60 + (x * 3 + y) % 40;
+                    g = 110 + (y * 2) % 50;
+                    b = 40 + x % 30;
+                }
+                r = clamp(r + random.nextInt(13) - 6);
+                g = clamp(g + random.nextInt(13) - 6);
+                b = clamp(b + random.nextInt(13) - 6);
+                px[y * SIZE + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return px;
+    }
+
+    private static int[] sprite() {
+        int[] px = new int[EmageCore.MAP_SIZE];
+        for (int y = 32; y < 96; y++) {
+            for (int x = 32; x < 96; x++) {
+                int dx = x - 64, dy = y - 64;
+                if (dx * dx + dy * dy < 30 * 30) {
+                    px[y * SIZE + x] = 0xFF000000 | ((x * 4) << 16) | ((y * 2) << 8) | 0x80;
+                }
+            }
+        }
+        return px;
+    }
+
+    private static int[] fromFile(File file) throws IOException {
+        BufferedImage img = ImageIO.read(file);
+        if (img == null) {
+            throw new IOException("Unknown tile '" + file + "': not a built-in pattern or readable image");
+        }
+        BufferedImage tile = EmageCore.resize(img, SIZE, SIZE);
+        int[] px = new int[EmageCore.MAP_SIZE];
+        tile.getRGB(0, 0, SIZE, SIZE, px, 0, SIZE);
+        return px;
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+}
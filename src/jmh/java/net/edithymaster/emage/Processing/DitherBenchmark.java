@@ -0,0 +1,48 @@
+package net.edithymaster.emage.Processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "--add-modules", "jdk.incubator.vector"})
+public class DitherBenchmark {
+
+    @Param({"gradient", "noise", "flat", "photo", "sprite"})
+    public String tile;
+
+    @Param({"FAST", "BALANCED", "HIGH"})
+    public EmageCore.Quality quality;
+
+    @Param({"false"})
+    public boolean simd;
+
+    private int[] pixels;
+    private int[] nextPixels;
+    private byte[] prevResult;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        EmageColors.initCache();
+        EmageCore.setSimdDither(simd);
+
+        pixels = BenchmarkTiles.load(tile);
+        nextPixels = BenchmarkTiles.moveSprite(pixels, 3);
+        prevResult = EmageCore.ditherPixels(pixels, quality);
+    }
+
+    @Benchmark
+    public byte[] dither() {
+        return EmageCore.ditherPixels(pixels, quality);
+    }
+
+    @Benchmark
+    public byte[] ditherStable() {
+        return EmageCore.ditherPixelsStable(nextPixels, pixels, prevResult, quality);
+    }
+}
@@ -11,22 +11,26 @@ import org.bukkit.entity.*;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.MapMeta;
 import org.bukkit.map.MapView;
+import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.util.RayTraceResult;
 import net.edithymaster.emage.*;
 import net.edithymaster.emage.Config.EmageConfig;
 import net.edithymaster.emage.Manager.EmageManager;
 import net.edithymaster.emage.Processing.EmageCore;
 import net.edithymaster.emage.Render.EmageRenderer;
+import net.edithymaster.emage.Render.FrameStore;
 import net.edithymaster.emage.Render.GifRenderer;
 import net.edithymaster.emage.Util.GifCache;
 import net.edithymaster.emage.Util.UpdateChecker;
 
 import javax.imageio.ImageIO;
+import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
@@ -40,6 +44,7 @@ public final class EmageCommand implements CommandExecutor, TabCompleter {
     private volatile long lastCooldownPrune = System.currentTimeMillis();
 
     private static final int WARN_GIF_CELLS = 9;
+    private static final int APPLY_PER_TICK = 16;
 
     private static final AtomicInteger activeTasks = new AtomicInteger(0);
 
@@ -99,6 +104,7 @@ public final class EmageCommand implements CommandExecutor, TabCompleter {
                 plugin.reloadConfig();
                 plugin.getEmageConfig().reload();
                 EmageCore.setConfig(plugin.getEmageConfig());
+                plugin.initColorSystem();
                 GifCache.configure(
                         plugin.getEmageConfig().getCacheMaxEntries(),
                         plugin.getEmageConfig().getCacheMaxMemoryBytes(),
@@ -451,31 +457,76 @@ public final class EmageCommand implements CommandExecutor, TabCompleter {
 
         long gridId = System.currentTimeMillis();
 
-        List<ProcessedChunk> chunks = new ArrayList<>();
-
+        List<FrameNode> targets = new ArrayList<>();
+        List<Point> tiles = new ArrayList<>();
         for (FrameNode node : nodes) {
             if (node.gridX < 0 || node.gridX >= gridWidth ||
                     node.gridY < 0 || node.gridY >= gridHeight) {
                 continue;
             }
+            targets.add(node);
+            tiles.add(new Point(node.gridX, node.gridY));
+        }
 
-            int px = node.gridX * 128;
-            int py = node.gridY * 128;
+        ChunkApplier applier = new ChunkApplier(player, gridId);
+        applier.task = Bukkit.getScheduler().runTaskTimer(plugin, applier, 1L, 1L);
 
-            BufferedImage chunk = resized.getSubimage(px, py, 128, 128);
-            byte[] mapData = EmageCore.dither(chunk, quality);
+        try {
+            EmageCore.ditherTiles(resized, tiles, quality, plugin.getEmageConfig().useSeamlessDither(),
+                    (tile, data) -> applier.ready.add(new ProcessedChunk(targets.get(tile).frame, data)));
+        } catch (Exception e) {
+            applier.failed = true;
+            throw e;
+        } finally {
+            applier.finished = true;
+        }
+    }
 
-            chunks.add(new ProcessedChunk(node.frame, mapData));
+    // Puts finished tiles into their frames a few per tick while the rest are still being
+    // dithered, and reports once the last one is in. After a failure the tiles still queued
+    // are dropped, and the player is told how many frames had already been changed.
+    private final class ChunkApplier implements Runnable {
+        final Queue<ProcessedChunk> ready = new ConcurrentLinkedQueue<>();
+        volatile boolean finished;
+        volatile boolean failed;
+        volatile BukkitTask task;
+
+        private final Player player;
+        private final long gridId;
+        private int applied;
+
+        ChunkApplier(Player player, long gridId) {
+            this.player = player;
+            this.gridId = gridId;
         }
 
-        Bukkit.getScheduler().runTask(plugin, () -> {
-            int applied = 0;
-            for (ProcessedChunk chunk : chunks) {
+        @Override
+        public void run() {
+            // failed is set before finished, so once done is read a failure is visible too
+            boolean done = finished;
+
+            if (failed) {
+                ready.clear();
+                BukkitTask t = task;
+                if (t != null) t.cancel();
+                if (applied > 0) {
+                    player.sendMessage(plugin.msg("partial", "<total>", String.valueOf(applied)));
+                }
+                return;
+            }
+
+            ProcessedChunk chunk;
+            for (int i = 0; i < APPLY_PER_TICK && (chunk = ready.poll()) != null; i++) {
                 applyMapToFrame(chunk.frame, chunk.data, gridId);
                 applied++;
             }
-            player.sendMessage(plugin.msg("success", "<total>", String.valueOf(applied)));
-        });
+
+            if (done && ready.isEmpty()) {
+                BukkitTask t = task;
+                if (t != null) t.cancel();
+                player.sendMessage(plugin.msg("success", "<total>", String.valueOf(applied)));
+            }
+        }
     }
 
     @SuppressWarnings("deprecation")
@@ -608,11 +659,12 @@ public final class EmageCommand implements CommandExecutor, TabCompleter {
         mapView.setTrackingPosition(false);
         mapView.setUnlimitedTracking(false);
 
-        GifRenderer renderer = new GifRenderer(frames, delays, syncId);
+        FrameStore.Frames stored = manager.saveGif(mapView.getId(), frames, delays, avgDelay, syncId);
+
+        GifRenderer renderer = new GifRenderer(stored, delays, syncId);
         renderer.setMapView(mapView);
         mapView.addRenderer(renderer);
 
-        manager.saveGif(mapView.getId(), frames, delays, avgDelay, syncId);
         GifRenderer.registerMapLocation(mapView.getId(), frame.getLocation());
 
         frame.setRotation(Rotation.NONE);
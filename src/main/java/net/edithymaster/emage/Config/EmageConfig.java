@@ -2,6 +2,8 @@ package net.edithymaster.emage.Config;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
+import net.edithymaster.emage.Processing.EmageColors;
+import net.edithymaster.emage.Processing.EmageCompression;
 import net.edithymaster.emage.Processing.EmageCore;
 
 import java.util.concurrent.atomic.AtomicInteger;
@@ -31,12 +33,23 @@ public class EmageConfig {
     private int minFps;
     private int maxPacketsPerTick;
     private boolean adaptivePerformance;
+    private boolean simdDither;
+    private int maxParallelTiles;
+    private int loadThreads;
 
     // Quality
     private int maxGifFrames;
     private int maxGridSize;
     private int maxGifGridSize;
     private int maxImageGridSize;
+    private int colorLutBits;
+    private boolean colorLutRefine;
+    private boolean seamlessDither;
+    private EmageCore.ResampleFilter resampleFilter;
+
+    // Storage
+    private EmageCompression.Codec staticCodec;
+    private EmageCompression.Codec animationCodec;
 
     // Memory
     private boolean useMemoryPool;
@@ -76,12 +89,29 @@ public class EmageConfig {
         minFps = config.getInt("performance.min-fps", 20);
         maxPacketsPerTick = config.getInt("performance.max-packets-per-tick", 80);
         adaptivePerformance = config.getBoolean("performance.adaptive", true);
+        simdDither = config.getBoolean("performance.simd-dither", false);
+        maxParallelTiles = config.getInt("performance.max-parallel-tiles", 0);
+        loadThreads = config.getInt("performance.load-threads", 0);
 
         // Quality
         maxGifFrames = config.getInt("quality.max-gif-frames", 200);
         maxGridSize = config.getInt("quality.max-grid-size", 15);
         maxGifGridSize = config.getInt("quality.max-gif-grid-size", 4);
         maxImageGridSize = config.getInt("quality.max-image-grid-size", 10);
+        colorLutBits = config.getInt("quality.color-lut-bits", EmageColors.DEFAULT_CACHE_BITS);
+        colorLutRefine = config.getBoolean("quality.color-lut-refine", false);
+        seamlessDither = config.getBoolean("quality.seamless-dither", true);
+        String filterName = config.getString("quality.resample-filter", "area");
+        try {
+            resampleFilter = EmageCore.ResampleFilter.valueOf(String.valueOf(filterName).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("Unknown quality.resample-filter '" + filterName + "', using area");
+            resampleFilter = EmageCore.ResampleFilter.AREA;
+        }
+
+        // Storage
+        staticCodec = parseCodec(config.getString("storage.static-codec", "deflate"), "storage.static-codec");
+        animationCodec = parseCodec(config.getString("storage.animation-codec", "deflate"), "storage.animation-codec");
 
         // Memory
         useMemoryPool = config.getBoolean("memory.use-pool", true);
@@ -113,11 +143,15 @@ public class EmageConfig {
         if (minFps < 1) minFps = 1;
         if (minFps > maxFps) minFps = maxFps;
         if (maxPacketsPerTick < 1) maxPacketsPerTick = 1;
+        if (maxParallelTiles < 0) maxParallelTiles = 0;
+        if (loadThreads < 0) loadThreads = 0;
         if (maxRenderDistance < 8) maxRenderDistance = 8;
         if (maxGifFrames < 1) maxGifFrames = 1;
         if (maxGridSize < 1) maxGridSize = 1;
         if (maxGifGridSize < 1) maxGifGridSize = 1;
         if (maxImageGridSize < 1) maxImageGridSize = 1;
+        if (colorLutBits < EmageColors.MIN_CACHE_BITS) colorLutBits = EmageColors.MIN_CACHE_BITS;
+        if (colorLutBits > EmageColors.MAX_CACHE_BITS) colorLutBits = EmageColors.MAX_CACHE_BITS;
         if (poolSize < 0) poolSize = 0;
         if (maxMemoryMB < 32) maxMemoryMB = 32;
         if (maxDownloadBytes < 1024 * 1024) maxDownloadBytes = 1024 * 1024;
@@ -134,6 +168,20 @@ public class EmageConfig {
 
         EmageCore.setUsePool(useMemoryPool);
         EmageCore.setMaxPoolSize(poolSize);
+        EmageCore.setSimdDither(simdDither);
+        EmageCore.setMaxParallelTiles(maxParallelTiles);
+        EmageCore.setResampleFilter(resampleFilter);
+        EmageCompression.setStaticCodec(staticCodec);
+        EmageCompression.setAnimationCodec(animationCodec);
+    }
+
+    private EmageCompression.Codec parseCodec(String name, String path) {
+        try {
+            return EmageCompression.Codec.valueOf(String.valueOf(name).trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("Unknown " + path + " '" + name + "', using deflate");
+            return EmageCompression.Codec.DEFLATE;
+        }
     }
 
     private void adaptPerformance() {
@@ -219,6 +267,9 @@ public class EmageConfig {
     public long getFrameTimeNanos() { return 1_000_000_000L / effectiveFps; }
     public int getMaxPacketsPerTick() { return maxPacketsPerTick; }
     public boolean isAdaptivePerformance() { return adaptivePerformance; }
+    public boolean useSimdDither() { return simdDither; }
+    public int getMaxParallelTiles() { return maxParallelTiles; }
+    public int getLoadThreads() { return loadThreads; }
     public int getMaxFps() { return maxFps; }
     public int getMinFps() { return minFps; }
     public int getMaxRenderDistance() { return maxRenderDistance; }
@@ -229,6 +280,15 @@ public class EmageConfig {
     public int getMaxGridSize() { return maxGridSize; }
     public int getMaxGifGridSize() { return maxGifGridSize; }
     public int getMaxImageGridSize() { return maxImageGridSize; }
+    public int getColorLutBits() { return colorLutBits; }
+    public boolean isColorLutRefine() { return colorLutRefine; }
+    public boolean useSeamlessDither() { return seamlessDither; }
+    public EmageCore.ResampleFilter getResampleFilter() { return resampleFilter; }
+
+    // Storage getters
+
+    public EmageCompression.Codec getStaticCodec() { return staticCodec; }
+    public EmageCompression.Codec getAnimationCodec() { return animationCodec; }
 
     // Memory getters
 
@@ -9,6 +9,7 @@ import org.bukkit.plugin.java.JavaPlugin;
 import net.edithymaster.emage.Command.EmageCommand;
 import net.edithymaster.emage.Config.EmageConfig;
 import net.edithymaster.emage.Manager.EmageManager;
+import net.edithymaster.emage.Processing.EmageColors;
 import net.edithymaster.emage.Processing.EmageCore;
 import net.edithymaster.emage.Render.GifRenderer;
 import net.edithymaster.emage.Util.GifCache;
@@ -32,14 +33,10 @@ public final class EmagePlugin extends JavaPlugin {
         saveDefaultConfig();
         backfillConfig();
 
-        getLogger().info("Initializing color system...");
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-            EmageCore.initColorSystem();
-            getLogger().info("Color system initialized.");
-        });
-
         emageConfig = new EmageConfig(this);
 
+        initColorSystem();
+
         EmageCore.setConfig(emageConfig);
 
         GifCache.init(getLogger());
@@ -72,6 +69,21 @@ public final class EmagePlugin extends JavaPlugin {
         getLogger().info("Emage v" + getDescription().getVersion() + " enabled!");
     }
 
+    public void initColorSystem() {
+        int bits = emageConfig.getColorLutBits();
+        boolean refine = emageConfig.isColorLutRefine();
+        if (EmageColors.isCacheCurrent(bits, refine)) return;
+
+        getLogger().info("Initializing color system (" + bits + "-bit lookup table"
+                + (refine ? ", refined" : "") + ")...");
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            long start = System.currentTimeMillis();
+            boolean loaded = EmageCore.initColorSystem(bits, refine, getDataFolder());
+            getLogger().info("Color system initialized in " + (System.currentTimeMillis() - start) + "ms"
+                    + (loaded ? " (loaded from disk)." : "."));
+        });
+    }
+
     private void backfillConfig() {
         boolean changed = false;
         var config = getConfig();
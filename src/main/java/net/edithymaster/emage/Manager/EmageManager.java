@@ -7,18 +7,27 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.server.MapInitializeEvent;
 import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.map.MapView;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 import net.edithymaster.emage.Config.EmageConfig;
 import net.edithymaster.emage.Processing.EmageCompression;
 import net.edithymaster.emage.Render.EmageRenderer;
+import net.edithymaster.emage.Render.FrameStore;
 import net.edithymaster.emage.Render.GifRenderer;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 
 public final class EmageManager implements Listener {
@@ -97,7 +106,7 @@ public final class EmageManager implements Listener {
 
     public void saveMap(int mapId, byte[] data, long gridId) {
         boolean isNew = managedMaps.add(mapId);
-        mapCache.put(mapId, new CachedMapData(data, null, null, 0, gridId, false));
+        releaseFrames(mapId, mapCache.put(mapId, new CachedMapData(data, null, null, 0, gridId, false)));
         if (isNew) {
             config.incrementMapCount();
         }
@@ -116,10 +125,14 @@ public final class EmageManager implements Listener {
         }
     }
 
-    public void saveGif(int mapId, List<byte[]> frames, List<Integer> delays, int avgDelay, long syncId) {
+    public FrameStore.Frames saveGif(int mapId, List<byte[]> frames, List<Integer> delays, int avgDelay, long syncId) {
         boolean isNew = managedMaps.add(mapId);
-        mapCache.put(mapId, new CachedMapData(null, new ArrayList<>(frames),
+        FrameStore.Frames stored = FrameStore.put(syncId, mapId, frames);
+        CachedMapData previous = mapCache.put(mapId, new CachedMapData(null, stored,
                 new ArrayList<>(delays), avgDelay, syncId, true));
+        if (previous != null && previous.syncId != syncId) {
+            releaseFrames(mapId, previous);
+        }
         if (isNew) {
             config.incrementMapCount();
             config.incrementAnimationCount();
@@ -137,6 +150,7 @@ public final class EmageManager implements Listener {
             grid.addCell(mapId, frames);
             grid.scheduleSave();
         }
+        return stored;
     }
 
     private class PendingStaticGrid {
@@ -244,12 +258,16 @@ public final class EmageManager implements Listener {
 
             ioExecutor.submit(() -> {
                 try {
-                    byte[] compressed = EmageCompression.compressAnimGrid(cellsCopy, delaysCopy, syncId);
+                    if (cellsCopy.isEmpty()) return;
+
                     File file = new File(mapsFolder, "anim_" + syncId + ".eagrid");
-                    Files.write(file.toPath(), compressed);
+                    File tmp = tempFor(file);
+                    EmageCompression.writeAnimGrid(cellsCopy, delaysCopy, syncId, tmp);
+                    replaceWith(tmp, file);
 
-                    int frameCount = cellsCopy.isEmpty() ? 0 : cellsCopy.values().iterator().next().size();
-                    plugin.getLogger().info("Saved animation: " + cellsCopy.size() + " cells, " + frameCount + " frames");
+                    int frameCount = cellsCopy.values().iterator().next().size();
+                    plugin.getLogger().info("Saved animation: " + cellsCopy.size() + " cells, " + frameCount +
+                            " frames, " + formatSize(file.length()));
                 } catch (Exception e) {
                     plugin.getLogger().log(Level.WARNING, "Failed to save animation " + syncId, e);
                 }
@@ -257,113 +275,248 @@ public final class EmageManager implements Listener {
         }
     }
 
+    // Files are read and decoded on a temporary pool. Everything that touches a MapView
+    // then runs on the main thread, a batch of maps per tick, in the same order as a serial
+    // load would: animations, static grids, single maps no grid has claimed, legacy grids.
     public void loadAllMaps() {
         plugin.getLogger().info("Loading saved maps...");
+        long start = System.nanoTime();
+
+        List<File> files = new ArrayList<>();
+        addFiles(files, name -> name.endsWith(".eagrid"));
+        addFiles(files, name -> name.endsWith(".esgrid"));
+        addFiles(files, name -> name.endsWith(".emap"));
+        addFiles(files, name -> name.startsWith("grid_") && name.endsWith(".egrid"));
+        long listed = System.nanoTime();
 
-        int staticLoaded = 0;
-        int animLoaded = 0;
+        int threads = config.getLoadThreads() > 0 ? config.getLoadThreads() : Runtime.getRuntime().availableProcessors();
+        threads = Math.max(1, Math.min(threads, files.size()));
 
-        File[] animGridFiles = mapsFolder.listFiles((dir, name) -> name.endsWith(".eagrid"));
-        if (animGridFiles != null) {
-            for (File file : animGridFiles) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Emage-Loader-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        AtomicLong decodeNanos = new AtomicLong();
+        List<CompletableFuture<LoadedFile>> futures = new ArrayList<>(files.size());
+        for (File file : files) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                long t = System.nanoTime();
                 try {
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    EmageCompression.AnimGridData grid = EmageCompression.decompressAnimGrid(data);
-                    if (grid != null) {
-                        animLoaded += applyAnimGrid(grid);
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger().warning("Failed to load: " + file.getName());
+                    return decodeFile(file);
+                } finally {
+                    decodeNanos.addAndGet(System.nanoTime() - t);
                 }
-            }
+            }, pool).handle((loaded, error) -> {
+                // decodeFile only catches Exception; anything else skips this file, not all of them
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    plugin.getLogger().log(Level.WARNING, "Failed to load " + file.getName(), cause);
+                    return null;
+                }
+                return loaded;
+            }));
         }
+        pool.shutdown();
 
-        File[] staticGridFiles = mapsFolder.listFiles((dir, name) -> name.endsWith(".esgrid"));
-        if (staticGridFiles != null) {
-            for (File file : staticGridFiles) {
-                try {
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    EmageCompression.StaticGridData grid = EmageCompression.decompressStaticGrid(data);
-                    if (grid != null) {
-                        staticLoaded += applyStaticGrid(grid);
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger().warning("Failed to load: " + file.getName());
+        int decodeThreads = threads;
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            long decoded = System.nanoTime();
+
+            List<LoadedFile> loaded = new ArrayList<>(futures.size());
+            for (CompletableFuture<LoadedFile> future : futures) {
+                LoadedFile file = future.getNow(null);
+                if (file != null) {
+                    loaded.add(file);
                 }
             }
+
+            if (!plugin.isEnabled()) return;
+
+            String phases = String.format("list %dms, decode %dms on %d threads (%dms cpu)",
+                    (listed - start) / 1_000_000, (decoded - listed) / 1_000_000, decodeThreads,
+                    decodeNanos.get() / 1_000_000);
+
+            LoadApplier applier = new LoadApplier(loaded, phases);
+            applier.task = Bukkit.getScheduler().runTaskTimer(plugin, applier, 0L, 1L);
+        });
+    }
+
+    private void addFiles(List<File> files, Predicate<String> filter) {
+        File[] found = mapsFolder.listFiles((dir, name) -> filter.test(name));
+        if (found != null) {
+            files.addAll(Arrays.asList(found));
         }
+    }
 
-        File[] emapFiles = mapsFolder.listFiles((dir, name) -> name.endsWith(".emap"));
-        if (emapFiles != null) {
-            for (File file : emapFiles) {
-                try {
-                    int mapId = Integer.parseInt(file.getName().replace(".emap", ""));
-                    if (!managedMaps.contains(mapId)) {
-                        byte[] data = Files.readAllBytes(file.toPath());
-                        byte[] mapData = EmageCompression.decompressSingleStatic(data);
-                        if (applyStaticMap(mapId, mapData)) {
-                            staticLoaded++;
-                        }
-                    }
-                } catch (NumberFormatException ignored) {
-                } catch (Exception e) {
-                    plugin.getLogger().warning("Failed to load emap: " + file.getName());
+    // Worker-thread half of loading: everything up to, but not including, Bukkit calls.
+    private LoadedFile decodeFile(File file) {
+        String name = file.getName();
+        boolean legacy = name.endsWith(".egrid");
+
+        try {
+            if (name.endsWith(".eagrid")) {
+                EmageCompression.AnimGridFile animFile = EmageCompression.openAnimGrid(file);
+                if (animFile != null) {
+                    return LoadedFile.anim(animFile.syncId, animFile.delays, FrameStore.putLazy(animFile), true);
                 }
             }
+
+            if (name.endsWith(".eagrid") || legacy) {
+                byte[] data = Files.readAllBytes(file.toPath());
+                EmageCompression.AnimGridData grid = EmageCompression.decompressAnimGrid(data);
+                if (grid == null) return null;
+
+                Map<Integer, FrameStore.Frames> cells = new HashMap<>();
+                for (Map.Entry<Integer, List<byte[]>> entry : grid.cells.entrySet()) {
+                    cells.put(entry.getKey(), FrameStore.put(grid.syncId, entry.getKey(), entry.getValue()));
+                }
+                if (!legacy) {
+                    rewriteAnimGrid(file, grid);
+                }
+                return LoadedFile.anim(grid.syncId, grid.delays, cells, !legacy);
+            }
+
+            if (name.endsWith(".esgrid")) {
+                byte[] data = Files.readAllBytes(file.toPath());
+                EmageCompression.StaticGridData grid = EmageCompression.decompressStaticGrid(data);
+                return grid != null ? LoadedFile.statics(grid.cells, false) : null;
+            }
+
+            int mapId = Integer.parseInt(name.replace(".emap", ""));
+            byte[] data = Files.readAllBytes(file.toPath());
+            return LoadedFile.statics(Map.of(mapId, EmageCompression.decompressSingleStatic(data)), true);
+
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (Exception e) {
+            if (!legacy) {
+                plugin.getLogger().warning("Failed to load: " + name);
+            }
+            return null;
+        }
+    }
+
+    private static final class LoadedFile {
+        final long syncId;
+        final List<Integer> delays;
+        final Map<Integer, FrameStore.Frames> animCells;
+        final Map<Integer, byte[]> staticCells;
+        // Single-map files lose to a grid that already holds the same id; legacy grids
+        // are applied without counting towards the totals.
+        final boolean single;
+        final boolean counted;
+
+        private LoadedFile(long syncId, List<Integer> delays, Map<Integer, FrameStore.Frames> animCells,
+                           Map<Integer, byte[]> staticCells, boolean single, boolean counted) {
+            this.syncId = syncId;
+            this.delays = delays;
+            this.animCells = animCells;
+            this.staticCells = staticCells;
+            this.single = single;
+            this.counted = counted;
         }
 
-        loadLegacyFiles();
+        static LoadedFile anim(long syncId, List<Integer> delays, Map<Integer, FrameStore.Frames> cells, boolean counted) {
+            return new LoadedFile(syncId, delays, cells, null, false, counted);
+        }
 
-        config.setMapCount(staticLoaded + animLoaded);
-        config.setAnimationCount(animLoaded);
+        static LoadedFile statics(Map<Integer, byte[]> cells, boolean single) {
+            return new LoadedFile(0, null, null, cells, single, true);
+        }
 
-        plugin.getLogger().info("Loaded " + staticLoaded + " static, " + animLoaded + " animations");
+        int size() {
+            return animCells != null ? animCells.size() : staticCells.size();
+        }
     }
 
-    private void loadLegacyFiles() {
-        File[] oldGridFiles = mapsFolder.listFiles((dir, name) ->
-                name.startsWith("grid_") && name.endsWith(".egrid"));
-        if (oldGridFiles != null) {
-            for (File file : oldGridFiles) {
-                try {
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    EmageCompression.AnimGridData grid = EmageCompression.decompressAnimGrid(data);
-                    if (grid != null) {
-                        applyAnimGrid(grid);
+    private class LoadApplier implements Runnable {
+        // Maps handed to their MapView per tick while loading.
+        private static final int APPLY_BATCH_SIZE = 64;
+
+        private final List<LoadedFile> files;
+        private final String phases;
+        private int next = 0;
+        private int ticks = 0;
+        private long applyNanos = 0;
+        private int staticLoaded = 0;
+        private int animLoaded = 0;
+        private boolean done = false;
+        volatile BukkitTask task;
+
+        LoadApplier(List<LoadedFile> files, String phases) {
+            this.files = files;
+            this.phases = phases;
+        }
+
+        @Override
+        public void run() {
+            // The first tick can come before the task handle is stored.
+            if (done) {
+                if (task != null) task.cancel();
+                return;
+            }
+
+            long t = System.nanoTime();
+            ticks++;
+
+            int budget = APPLY_BATCH_SIZE;
+            while (next < files.size() && budget > 0) {
+                LoadedFile file = files.get(next++);
+                budget -= file.size();
+
+                if (file.animCells != null) {
+                    int applied = applyAnimGrid(file.syncId, file.delays, file.animCells);
+                    if (file.counted) {
+                        animLoaded += applied;
+                    }
+                } else {
+                    for (Map.Entry<Integer, byte[]> entry : file.staticCells.entrySet()) {
+                        if (file.single && managedMaps.contains(entry.getKey())) continue;
+                        if (applyStaticMap(entry.getKey(), entry.getValue())) {
+                            staticLoaded++;
+                        }
                     }
-                } catch (Exception ignored) {}
+                }
             }
-        }
-    }
+            applyNanos += System.nanoTime() - t;
 
-    private int applyStaticGrid(EmageCompression.StaticGridData grid) {
-        int count = 0;
-        for (Map.Entry<Integer, byte[]> entry : grid.cells.entrySet()) {
-            if (applyStaticMap(entry.getKey(), entry.getValue())) {
-                count++;
+            if (next < files.size()) return;
+
+            done = true;
+            if (task != null) {
+                task.cancel();
             }
+
+            config.setMapCount(staticLoaded + animLoaded);
+            config.setAnimationCount(animLoaded);
+
+            plugin.getLogger().info("Loaded " + staticLoaded + " static, " + animLoaded + " animations ("
+                    + phases + ", apply " + applyNanos / 1_000_000 + "ms over " + ticks + " ticks)");
         }
-        return count;
     }
 
-    private int applyAnimGrid(EmageCompression.AnimGridData grid) {
-        GifRenderer.resetSyncTime(grid.syncId);
+    private int applyAnimGrid(long syncId, List<Integer> delays, Map<Integer, FrameStore.Frames> cells) {
+        GifRenderer.resetSyncTime(syncId);
 
         int count = 0;
-        int avgDelay = grid.delays.isEmpty() ? 100 :
-                (int) grid.delays.stream().mapToInt(Integer::intValue).average().orElse(100);
+        int avgDelay = delays.isEmpty() ? 100 :
+                (int) delays.stream().mapToInt(Integer::intValue).average().orElse(100);
 
-        for (Map.Entry<Integer, List<byte[]>> entry : grid.cells.entrySet()) {
+        for (Map.Entry<Integer, FrameStore.Frames> entry : cells.entrySet()) {
             int mapId = entry.getKey();
-            List<byte[]> frames = entry.getValue();
+            FrameStore.Frames frames = entry.getValue();
 
             managedMaps.add(mapId);
-            mapCache.put(mapId, new CachedMapData(null, frames, grid.delays, avgDelay, grid.syncId, true));
+            mapCache.put(mapId, new CachedMapData(null, frames, delays, avgDelay, syncId, true));
 
             @SuppressWarnings("deprecation")
             MapView mapView = Bukkit.getMap(mapId);
             if (mapView != null) {
-                applyAnimRenderer(mapView, frames, grid.delays, grid.syncId);
+                applyAnimRenderer(mapView, frames, delays, syncId);
                 appliedMaps.add(mapId);
                 count++;
             }
@@ -372,6 +525,38 @@ public final class EmageManager implements Listener {
         return count;
     }
 
+    // Old single-blob animation files are decoded in full once, then written back in the
+    // grouped layout so the next start can read them lazily.
+    private void rewriteAnimGrid(File file, EmageCompression.AnimGridData grid) {
+        ioExecutor.submit(() -> {
+            try {
+                if (grid.cells.isEmpty()) return;
+
+                File tmp = tempFor(file);
+                EmageCompression.writeAnimGrid(grid.cells, grid.delays, grid.syncId, tmp);
+                replaceWith(tmp, file);
+                plugin.getLogger().fine("Converted " + file.getName() + " to the grouped animation format");
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.WARNING, "Failed to convert " + file.getName(), e);
+            }
+        });
+    }
+
+    // Animation files may be read group by group by a live renderer, so they are never truncated
+    // in place: the new contents go to a temporary file that is renamed over the old one.
+    private File tempFor(File file) {
+        return new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    private void replaceWith(File tmp, File file) throws IOException {
+        Path target = file.toPath();
+        try {
+            Files.move(tmp.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     private boolean applyStaticMap(int mapId, byte[] data) {
         managedMaps.add(mapId);
         mapCache.put(mapId, new CachedMapData(data, null, null, 0, 0, false));
@@ -393,7 +578,7 @@ public final class EmageManager implements Listener {
         mapView.addRenderer(new EmageRenderer(data));
     }
 
-    private void applyAnimRenderer(MapView mapView, List<byte[]> frames, List<Integer> delays, long syncId) {
+    private void applyAnimRenderer(MapView mapView, FrameStore.Frames frames, List<Integer> delays, long syncId) {
         mapView.getRenderers().forEach(mapView::removeRenderer);
         mapView.setTrackingPosition(false);
         mapView.setUnlimitedTracking(false);
@@ -452,6 +637,7 @@ public final class EmageManager implements Listener {
     @EventHandler
     public void onWorldLoad(WorldLoadEvent event) {
         World loadedWorld = event.getWorld();
+        GifRenderer.loadWorld(loadedWorld);
         Bukkit.getScheduler().runTaskLater(plugin, () -> {
             for (Map.Entry<Integer, CachedMapData> entry : mapCache.entrySet()) {
                 int mapId = entry.getKey();
@@ -472,6 +658,11 @@ public final class EmageManager implements Listener {
         }, 40L);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        GifRenderer.unloadWorld(event.getWorld());
+    }
+
     public int cleanupUnusedFiles(Set<Integer> mapsInUse) {
         int deleted = 0;
         File[] files = mapsFolder.listFiles();
@@ -517,7 +708,7 @@ public final class EmageManager implements Listener {
                             removeRenderers(mapId);
 
                             managedMaps.remove(mapId);
-                            mapCache.remove(mapId);
+                            releaseFrames(mapId, mapCache.remove(mapId));
                             appliedMaps.remove(mapId);
                         }
                     } else {
@@ -562,7 +753,7 @@ public final class EmageManager implements Listener {
     private Set<Integer> getMapIdsFromGridFile(File file) {
         Set<Integer> mapIds = new HashSet<>();
 
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
             int m1 = dis.readByte() & 0xFF;
             int m2 = dis.readByte() & 0xFF;
             int m3 = dis.readByte() & 0xFF;
@@ -571,6 +762,7 @@ public final class EmageManager implements Listener {
                 return mapIds;
             }
 
+            EmageCompression.skipVersion(dis);
             dis.readLong();
 
             int cellCount = dis.readShort() & 0xFFFF;
@@ -655,13 +847,13 @@ public final class EmageManager implements Listener {
 
     private static class CachedMapData {
         final byte[] staticData;
-        final List<byte[]> frames;
+        final FrameStore.Frames frames;
         final List<Integer> delays;
         final int avgDelay;
         final long syncId;
         final boolean isAnimation;
 
-        CachedMapData(byte[] staticData, List<byte[]> frames, List<Integer> delays,
+        CachedMapData(byte[] staticData, FrameStore.Frames frames, List<Integer> delays,
                       int avgDelay, long syncId, boolean isAnimation) {
             this.staticData = staticData;
             this.frames = frames;
@@ -674,7 +866,7 @@ public final class EmageManager implements Listener {
 
     public void removeMap(int mapId) {
         managedMaps.remove(mapId);
-        mapCache.remove(mapId);
+        releaseFrames(mapId, mapCache.remove(mapId));
         appliedMaps.remove(mapId);
 
         @SuppressWarnings("deprecation")
@@ -689,6 +881,12 @@ public final class EmageManager implements Listener {
         }
     }
 
+    private void releaseFrames(int mapId, CachedMapData cached) {
+        if (cached != null && cached.isAnimation) {
+            FrameStore.remove(cached.syncId, mapId);
+        }
+    }
+
     public static class MapStats {
         public final int staticMaps;
         public final int animations;
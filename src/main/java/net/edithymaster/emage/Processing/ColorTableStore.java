@@ -0,0 +1,127 @@
+package net.edithymaster.emage.Processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+final class ColorTableStore {
+
+    private ColorTableStore() {}
+
+    private static final Logger logger = Logger.getLogger(ColorTableStore.class.getName());
+
+    private static final int MAGIC = 0x454C5554; // "ELUT"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 1 + 4 + 8;
+    private static final String PREFIX = "colors-";
+    private static final String SUFFIX = ".lut";
+
+    static File fileFor(File folder, long key) {
+        return new File(folder, PREFIX + Long.toHexString(key) + SUFFIX);
+    }
+
+    static byte[] load(File file, long key, int bits, boolean refined) {
+        if (!file.isFile()) return null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int expected = 1 << (bits * 3);
+            if (channel.size() != HEADER_SIZE + (long) expected) {
+                logger.warning("Ignoring color table " + file.getName() + ": unexpected size");
+                return null;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getLong() != key
+                    || buffer.get() != bits || buffer.get() != (refined ? 1 : 0) || buffer.getInt() != expected) {
+                logger.warning("Ignoring color table " + file.getName() + ": header mismatch");
+                return null;
+            }
+
+            long checksum = buffer.getLong();
+            byte[] data = new byte[expected];
+            buffer.get(data);
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if (crc.getValue() != checksum) {
+                logger.warning("Ignoring color table " + file.getName() + ": checksum mismatch");
+                return null;
+            }
+
+            return data;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read color table " + file.getName(), e);
+            return null;
+        }
+    }
+
+    static void save(File file, long key, int bits, boolean refined, byte[] data) {
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists() && !folder.mkdirs()) {
+            logger.warning("Could not create folder for color table: " + folder);
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(key);
+        header.put((byte) bits);
+        header.put((byte) (refined ? 1 : 0));
+        header.putInt(data.length);
+        header.putLong(crc.getValue());
+        header.flip();
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer body = ByteBuffer.wrap(data);
+                while (header.hasRemaining()) channel.write(header);
+                while (body.hasRemaining()) channel.write(body);
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save color table " + file.getName(), e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {}
+            return;
+        }
+
+        deleteStale(folder, file.getName());
+    }
+
+    private static void deleteStale(File folder, String keep) {
+        if (folder == null) return;
+
+        File[] files = folder.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return;
+
+        for (File f : files) {
+            if (!f.getName().equals(keep) && !f.delete()) {
+                logger.fine("Could not delete stale color table " + f.getName());
+            }
+        }
+    }
+}
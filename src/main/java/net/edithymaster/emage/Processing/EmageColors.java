@@ -3,6 +3,10 @@ package net.edithymaster.emage.Processing;
 import org.bukkit.Bukkit;
 
 import java.awt.Color;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public final class EmageColors {
 
@@ -86,17 +90,25 @@ public final class EmageColors {
 
     private static final Color[] COLORS = new Color[256];
 
-    private static final int CACHE_BITS = 7;
-    private static final int CACHE_SIZE = 1 << (CACHE_BITS * 3);
-    private static final int CACHE_SHIFT = 8 - CACHE_BITS;
-    private static final byte[] CACHE = new byte[CACHE_SIZE];
-    private static volatile boolean initialized = false;
+    public static final int MIN_CACHE_BITS = 5;
+    public static final int MAX_CACHE_BITS = 8;
+    public static final int DEFAULT_CACHE_BITS = 7;
+
+    // Part of the persisted table key; bump whenever findClosestColorLab changes its answers.
+    private static final int MATCHER_VERSION = 1;
+
+    private static final Object BUILD_LOCK = new Object();
+    private static volatile ColorTable table = null;
 
     private static final double[][] PALETTE_LAB = new double[256][3];
+    private static final LabKdTree PALETTE_TREE;
     private static final double[] LINEAR_TABLE = new double[256];
 
     private static final double[][] PALETTE_LINEAR_RGB = new double[256][3];
 
+    static final float[] LINEAR_TABLE_F = new float[256];
+    static final float[] PALETTE_LINEAR_F = new float[256 * 3];
+
     private static final int DELIN_TABLE_SIZE = 16384;
     private static final int[] DELIN_TABLE = new int[DELIN_TABLE_SIZE + 1];
 
@@ -123,8 +135,15 @@ public final class EmageColors {
             PALETTE_LINEAR_RGB[i][0] = LINEAR_TABLE[rgb[0]];
             PALETTE_LINEAR_RGB[i][1] = LINEAR_TABLE[rgb[1]];
             PALETTE_LINEAR_RGB[i][2] = LINEAR_TABLE[rgb[2]];
+
+            LINEAR_TABLE_F[i] = (float) LINEAR_TABLE[i];
+            PALETTE_LINEAR_F[i * 3] = (float) LINEAR_TABLE[rgb[0]];
+            PALETTE_LINEAR_F[i * 3 + 1] = (float) LINEAR_TABLE[rgb[1]];
+            PALETTE_LINEAR_F[i * 3 + 2] = (float) LINEAR_TABLE[rgb[2]];
         }
 
+        PALETTE_TREE = new LabKdTree(PALETTE_LAB, 4, MAX_VALID_INDEX);
+
         for (int i = 0; i <= DELIN_TABLE_SIZE; i++) {
             double linear = (double) i / DELIN_TABLE_SIZE;
             double srgb;
@@ -153,31 +172,179 @@ public final class EmageColors {
         }
     }
 
+    // Precision is bits per channel: 5 bits is a 32 KB table that stays in L2, 8 bits is the
+    // exact 16 MB table. The previous table keeps serving lookups while a new one is built.
+    static final class ColorTable {
+        final int bits;
+        final int shift;
+        final boolean refined;
+        final byte[] data;
+
+        ColorTable(int bits, boolean refined, byte[] data) {
+            this.bits = bits;
+            this.shift = 8 - bits;
+            this.refined = refined;
+            this.data = data;
+        }
+
+        int index(int r, int g, int b) {
+            return ((r >> shift) << (bits * 2)) | ((g >> shift) << bits) | (b >> shift);
+        }
+    }
+
     public static void initCache() {
-        if (initialized) return;
+        initCache(DEFAULT_CACHE_BITS, false);
+    }
+
+    public static void initCache(int bits, boolean refine) {
+        initCache(bits, refine, null);
+    }
+
+    // With a folder the table is loaded from disk when a file with a matching key exists,
+    // and written there after a fresh build so the next start skips the build.
+    public static boolean initCache(int bits, boolean refine, File folder) {
+        bits = Math.max(MIN_CACHE_BITS, Math.min(MAX_CACHE_BITS, bits));
+        refine = refine && bits < 8;
+        if (isCacheCurrent(bits, refine)) return true;
+
+        synchronized (BUILD_LOCK) {
+            if (isCacheCurrent(bits, refine)) return true;
+
+            if (folder == null) {
+                table = buildTable(bits, refine);
+                return false;
+            }
+
+            long key = tableKey(bits, refine);
+            File file = ColorTableStore.fileFor(folder, key);
+
+            byte[] data = ColorTableStore.load(file, key, bits, refine);
+            if (data != null) {
+                table = new ColorTable(bits, refine, data);
+                return true;
+            }
+
+            ColorTable built = buildTable(bits, refine);
+            table = built;
+            ColorTableStore.save(file, key, bits, refine, built.data);
+            return false;
+        }
+    }
+
+    private static long tableKey(int bits, boolean refine) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buf = ByteBuffer.allocate(16 + PALETTE.length * 3);
+            buf.putInt(MATCHER_VERSION).putInt(MAX_VALID_INDEX).putInt(bits).putInt(refine ? 1 : 0);
+            for (int[] rgb : PALETTE) {
+                buf.put((byte) rgb[0]).put((byte) rgb[1]).put((byte) rgb[2]);
+            }
+            digest.update(buf.array());
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        synchronized (CACHE) {
-            if (initialized) return;
+    public static boolean isCacheCurrent(int bits, boolean refine) {
+        ColorTable current = table;
+        return current != null && current.bits == bits && current.refined == (refine && bits < 8);
+    }
+
+    private static ColorTable buildTable(int bits, boolean refine) {
+        int total = 1 << bits;
+        int shift = 8 - bits;
+        byte[] data = new byte[1 << (bits * 3)];
 
-            int bits = CACHE_BITS;
-            int total = 1 << bits;
-            int shift = CACHE_SHIFT;
+        if (refine) {
+            refineTable(data, bits);
+            return new ColorTable(bits, true, data);
+        }
 
-            java.util.stream.IntStream.range(0, total).parallel().forEach(r -> {
-                for (int g = 0; g < total; g++) {
-                    for (int b = 0; b < total; b++) {
-                        int r8 = (r << shift) | (r >> (bits - shift));
-                        int g8 = (g << shift) | (g >> (bits - shift));
-                        int b8 = (b << shift) | (b >> (bits - shift));
+        java.util.stream.IntStream.range(0, total).parallel().forEach(r -> {
+            for (int g = 0; g < total; g++) {
+                for (int b = 0; b < total; b++) {
+                    int r8 = (r << shift) | (r >> (bits - shift));
+                    int g8 = (g << shift) | (g >> (bits - shift));
+                    int b8 = (b << shift) | (b >> (bits - shift));
 
-                        int index = (r << (bits * 2)) | (g << bits) | b;
-                        CACHE[index] = findClosestColorLab(r8, g8, b8);
+                    int index = (r << (bits * 2)) | (g << bits) | b;
+                    data[index] = findClosestColorLab(r8, g8, b8);
+                }
+            }
+        });
+
+        return new ColorTable(bits, false, data);
+    }
+
+    // A cell whose eight corners all map to the same palette entry takes that entry. Cells
+    // straddling a palette boundary are ambiguous: they get a majority vote between the
+    // corners and the cell center, with the center winning ties.
+    private static void refineTable(byte[] data, int bits) {
+        int total = 1 << bits;
+        int shift = 8 - bits;
+        int n = total + 1;
+        byte[] lattice = new byte[n * n * n];
+
+        java.util.stream.IntStream.range(0, n).parallel().forEach(r -> {
+            int r8 = Math.min(255, r << shift);
+            for (int g = 0; g < n; g++) {
+                int g8 = Math.min(255, g << shift);
+                for (int b = 0; b < n; b++) {
+                    lattice[(r * n + g) * n + b] = findClosestColorLab(r8, g8, Math.min(255, b << shift));
+                }
+            }
+        });
+
+        int half = 1 << (shift - 1);
+
+        java.util.stream.IntStream.range(0, total).parallel().forEach(r -> {
+            byte[] votes = new byte[9];
+            for (int g = 0; g < total; g++) {
+                for (int b = 0; b < total; b++) {
+                    boolean uniform = true;
+                    int k = 0;
+                    for (int dr = 0; dr <= 1; dr++) {
+                        for (int dg = 0; dg <= 1; dg++) {
+                            for (int db = 0; db <= 1; db++) {
+                                votes[k] = lattice[((r + dr) * n + g + dg) * n + b + db];
+                                if (votes[k] != votes[0]) uniform = false;
+                                k++;
+                            }
+                        }
+                    }
+
+                    int index = (r << (bits * 2)) | (g << bits) | b;
+                    if (uniform) {
+                        data[index] = votes[0];
+                        continue;
                     }
+
+                    votes[8] = findClosestColorLab((r << shift) + half, (g << shift) + half, (b << shift) + half);
+                    data[index] = majority(votes);
                 }
-            });
+            }
+        });
+    }
+
+    private static byte majority(byte[] votes) {
+        byte best = votes[votes.length - 1];
+        int bestCount = 0;
+        for (byte candidate : votes) {
+            if (candidate == best) bestCount++;
+        }
 
-            initialized = true;
+        for (int i = 0; i < votes.length - 1; i++) {
+            int count = 0;
+            for (byte v : votes) {
+                if (v == votes[i]) count++;
+            }
+            if (count > bestCount) {
+                best = votes[i];
+                bestCount = count;
+            }
         }
+        return best;
     }
 
     public static byte matchColor(int r, int g, int b) {
@@ -185,49 +352,52 @@ public final class EmageColors {
         g = Math.max(0, Math.min(255, g));
         b = Math.max(0, Math.min(255, b));
 
-        if (initialized) {
-            int index = ((r >> CACHE_SHIFT) << (CACHE_BITS * 2))
-                    | ((g >> CACHE_SHIFT) << CACHE_BITS)
-                    | (b >> CACHE_SHIFT);
-            return CACHE[index];
+        ColorTable current = table;
+        if (current != null) {
+            return current.data[current.index(r, g, b)];
         }
 
         return findClosestColorLab(r, g, b);
     }
 
+    static ColorTable getTable() {
+        return table;
+    }
+
+    public static int getCacheBits() {
+        ColorTable current = table;
+        return current != null ? current.bits : 0;
+    }
+
     private static byte findClosestColorLab(int r, int g, int b) {
         double[] lab = rgbToLab(r, g, b);
         double L = lab[0], a = lab[1], bv = lab[2];
 
-        double bestLabEuc = Double.MAX_VALUE;
-
-        for (int i = 4; i < MAX_VALID_INDEX; i++) {
-            double dL = L - PALETTE_LAB[i][0];
-            double da = a - PALETTE_LAB[i][1];
-            double db = bv - PALETTE_LAB[i][2];
-            double d = dL * dL + da * da + db * db;
-            if (d < bestLabEuc) bestLabEuc = d;
-        }
-
+        double bestLabEuc = PALETTE_TREE.nearestDistanceSq(L, a, bv);
         double threshold = bestLabEuc * 3.0 + 100.0;
 
+        long[] candidates = new long[4];
+        PALETTE_TREE.withinDistanceSq(L, a, bv, threshold, candidates);
+
         int bestIndex = 4;
         double bestDistance = Double.MAX_VALUE;
 
-        for (int i = 4; i < MAX_VALID_INDEX; i++) {
-            double dL = L - PALETTE_LAB[i][0];
-            double da = a - PALETTE_LAB[i][1];
-            double db = bv - PALETTE_LAB[i][2];
-            double labEuc = dL * dL + da * da + db * db;
+        // Candidates are visited in palette order so ties resolve exactly as a linear scan would.
+        for (int word = 0; word < candidates.length; word++) {
+            long bits = candidates[word];
+            while (bits != 0) {
+                int i = (word << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
 
-            if (labEuc > threshold) continue;
+                if (lightnessBound(L, PALETTE_LAB[i][0]) > bestDistance) continue;
 
-            double distance = ciede2000(lab, PALETTE_LAB[i]);
+                double distance = ciede2000(lab, PALETTE_LAB[i]);
 
-            if (distance < bestDistance) {
-                bestDistance = distance;
-                bestIndex = i;
-                if (distance < 0.001) break;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    bestIndex = i;
+                    if (distance < 0.001) return (byte) bestIndex;
+                }
             }
         }
 
@@ -240,6 +410,17 @@ public final class EmageColors {
         return x3 * x3 * x;
     }
 
+    // The lightness term of ciede2000 on its own. The chroma/hue part, RT cross term included,
+    // is never negative (|RT| <= 2), so this is a lower bound on the full distance; the small
+    // margin keeps rounding in the full formula from ever turning a prune into a wrong answer.
+    private static double lightnessBound(double L1, double L2) {
+        double Lbp = (L1 + L2) / 2.0;
+        double Lbp50sq = (Lbp - 50.0) * (Lbp - 50.0);
+        double SL = 1.0 + 0.015 * Lbp50sq / Math.sqrt(20.0 + Lbp50sq);
+        double ratioL = (L2 - L1) / SL;
+        return ratioL * ratioL * (1.0 - 1e-9);
+    }
+
     private static double ciede2000(double[] lab1, double[] lab2) {
         double L1 = lab1[0], a1 = lab1[1], b1_val = lab1[2];
         double L2 = lab2[0], a2 = lab2[1], b2_val = lab2[2];
@@ -353,6 +534,12 @@ public final class EmageColors {
         return DELIN_TABLE[(int) (linear * DELIN_TABLE_SIZE + 0.5)];
     }
 
+    static int delinearize(float linear) {
+        if (linear <= 0.0f) return 0;
+        if (linear >= 1.0f) return 255;
+        return DELIN_TABLE[(int) (linear * DELIN_TABLE_SIZE + 0.5f)];
+    }
+
     public static double[] getLinearRGB(byte index) {
         return PALETTE_LINEAR_RGB[index & 0xFF];
     }
@@ -367,6 +554,6 @@ public final class EmageColors {
     }
 
     public static boolean isCacheReady() {
-        return initialized;
+        return table != null;
     }
 }
\ No newline at end of file
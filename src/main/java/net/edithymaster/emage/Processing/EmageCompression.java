@@ -1,6 +1,14 @@
 package net.edithymaster.emage.Processing;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -15,14 +23,51 @@ public final class EmageCompression {
 
     private static final int MAP_SIZE = 16384;
 
+    // Frames per independently compressed group in an EGA2 animation file.
+    private static final int ANIM_GROUP_SIZE = 16;
+
+    // Codecs used for newly written files; the codec of every file is recorded in its
+    // header, so changing these never affects what is already on disk.
+    private static volatile Codec staticCodec = Codec.DEFLATE;
+    private static volatile Codec animationCodec = Codec.DEFLATE;
+
+    public enum Codec {
+        DEFLATE(0),
+        LZ4(1),
+        DEFLATE_MAX(2);
+
+        final int id;
+
+        Codec(int id) {
+            this.id = id;
+        }
+
+        static Codec byId(int id) throws IOException {
+            for (Codec codec : values()) {
+                if (codec.id == id) return codec;
+            }
+            throw new IOException("Unknown codec " + id);
+        }
+    }
+
+    public static void setStaticCodec(Codec codec) {
+        staticCodec = codec != null ? codec : Codec.DEFLATE;
+    }
+
+    public static void setAnimationCodec(Codec codec) {
+        animationCodec = codec != null ? codec : Codec.DEFLATE;
+    }
+
     public static byte[] compressSingleStatic(byte[] data) {
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream dos = new DataOutputStream(baos);
 
+            Codec codec = staticCodec;
+
             dos.writeByte('E');
             dos.writeByte('M');
-            dos.writeByte('1');
+            dos.writeByte('2');
 
             int[] colorCount = new int[256];
             for (byte b : data) {
@@ -63,8 +108,9 @@ public final class EmageCompression {
                 packed = remapped;
             }
 
-            byte[] compressed = deflate(packed, Deflater.DEFAULT_COMPRESSION);
+            byte[] compressed = compress(codec, packed, Deflater.DEFAULT_COMPRESSION);
 
+            dos.writeByte(codec.id);
             dos.writeInt(packed.length);
             dos.writeInt(compressed.length);
             dos.write(compressed);
@@ -102,6 +148,7 @@ public final class EmageCompression {
             }
 
             int bpp = dis.readByte() & 0xFF;
+            Codec codec = version >= '2' ? Codec.byId(dis.readByte() & 0xFF) : Codec.DEFLATE;
             int packedSize = dis.readInt();
             int compressedSize = dis.readInt();
 
@@ -109,7 +156,7 @@ public final class EmageCompression {
             dis.readFully(compressedData);
             dis.close();
 
-            byte[] packed = inflate(compressedData, packedSize);
+            byte[] packed = decompress(codec, compressedData, packedSize);
 
             byte[] remapped;
             if (bpp < 8) {
@@ -135,11 +182,12 @@ public final class EmageCompression {
     public static Set<Integer> getMapIdsFromFile(File file) {
         Set<Integer> mapIds = new HashSet<>();
 
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
             byte[] header = new byte[3];
             dis.readFully(header);
 
             if (header[0] == 'E' && header[1] == 'G' && (header[2] == 'S' || header[2] == 'A')) {
+                skipVersion(dis);
                 dis.readLong();
                 int cellCount = dis.readShort() & 0xFFFF;
 
@@ -173,6 +221,23 @@ public final class EmageCompression {
         return mapIds;
     }
 
+    // Steps over the version byte of EGS2/EGA2 and later grids if there is one; older files
+    // go straight on to the grid or sync id, a millisecond timestamp whose first byte is 0.
+    public static void skipVersion(DataInputStream dis) throws IOException {
+        dis.mark(1);
+        if (!isVersion(dis.readByte())) {
+            dis.reset();
+        }
+    }
+
+    private static boolean isVersion(byte b) {
+        return b >= '2' && b <= '9';
+    }
+
+    private static boolean hasVersion(byte[] data) {
+        return data.length >= 4 && isVersion(data[3]);
+    }
+
     public static byte[] compressStaticGrid(Map<Integer, byte[]> cells, long gridId) {
         try {
             if (cells.isEmpty()) {
@@ -182,9 +247,12 @@ public final class EmageCompression {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream dos = new DataOutputStream(baos);
 
+            Codec codec = staticCodec;
+
             dos.writeByte('E');
             dos.writeByte('G');
             dos.writeByte('S');
+            dos.writeByte('2');
 
             dos.writeLong(gridId);
 
@@ -288,8 +356,9 @@ public final class EmageCompression {
             }
 
             byte[] rawCellData = cellData.toByteArray();
-            byte[] compressedCellData = deflate(rawCellData, Deflater.DEFAULT_COMPRESSION);
+            byte[] compressedCellData = compress(codec, rawCellData, Deflater.DEFAULT_COMPRESSION);
 
+            dos.writeByte(codec.id);
             dos.writeInt(rawCellData.length);
             dos.writeInt(compressedCellData.length);
             dos.write(compressedCellData);
@@ -325,6 +394,11 @@ public final class EmageCompression {
                 return null;
             }
 
+            boolean versioned = hasVersion(data);
+            if (versioned) {
+                dis.readByte();
+            }
+
             long gridId = dis.readLong();
             int cellCount = dis.readShort() & 0xFFFF;
 
@@ -342,6 +416,7 @@ public final class EmageCompression {
             }
 
             int bpp = dis.readByte() & 0xFF;
+            Codec codec = versioned ? Codec.byId(dis.readByte() & 0xFF) : Codec.DEFLATE;
 
             int rawSize = dis.readInt();
             int compressedSize = dis.readInt();
@@ -350,7 +425,7 @@ public final class EmageCompression {
             dis.readFully(compressedCellData);
             dis.close();
 
-            byte[] rawCellData = inflate(compressedCellData, rawSize);
+            byte[] rawCellData = decompress(codec, compressedCellData, rawSize);
 
             Map<Integer, byte[]> cells = new HashMap<>();
             ByteArrayInputStream cellIn = new ByteArrayInputStream(rawCellData);
@@ -404,6 +479,19 @@ public final class EmageCompression {
         }
     }
 
+    // EGA3 animation grid, big-endian throughout:
+    //   "EGA3", long syncId, u16 cellCount, u16 frameCount, int[cellCount] mapIds (ascending)
+    //   u16 avgDelay, s16[frameCount] delay - avgDelay
+    //   u8 colorCount (0 = 256), u8[colorCount] palette, u8 bitsPerPixel
+    //   u16 groupSize, u8 codec, u8[cellCount][(frameCount + 7) / 8] repeat bits
+    //   int groupCount, {int offset, int rawSize, int compressedSize}[groupCount]
+    //   the groups, each compressed on its own
+    // EGA2 is the same without the codec byte, always deflate.
+    // A group holds, for each of its frames and each cell in mapIds order, a marker byte
+    // (low nibble 0 full, 1 sparse, 2 xor, 3 unchanged; high nibble 1 when the reference is
+    // the cell's previous frame, 2 when it is the previous cell of the same frame) and,
+    // unless unchanged, a u16 length and the payload. The first frame of a group never
+    // refers to an earlier frame, so every group decodes without the others.
     public static byte[] compressAnimGrid(Map<Integer, List<byte[]>> cells, List<Integer> delays, long syncId) {
         try {
             if (cells.isEmpty()) {
@@ -411,184 +499,353 @@ public final class EmageCompression {
             }
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-
-            dos.writeByte('E');
-            dos.writeByte('G');
-            dos.writeByte('A');
-
-            dos.writeLong(syncId);
+            AnimIndex index = encodeAnimGrid(cells, delays, syncId, baos);
 
-            List<Integer> mapIds = new ArrayList<>(cells.keySet());
-            Collections.sort(mapIds);
-
-            int frameCount = cells.get(mapIds.get(0)).size();
+            byte[] result = baos.toByteArray();
+            System.arraycopy(index.table, 0, result, index.position, index.table.length);
+            return result;
 
-            dos.writeShort(mapIds.size());
-            dos.writeShort(frameCount);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to compress animation grid", e);
+            return new byte[0];
+        }
+    }
 
-            for (int mapId : mapIds) {
-                dos.writeInt(mapId);
-            }
+    // Same bytes, streamed to the file a group at a time so only one group's raw data is
+    // ever held; the index is written last, over the space reserved for it.
+    public static void writeAnimGrid(Map<Integer, List<byte[]>> cells, List<Integer> delays, long syncId,
+                                     File file) throws IOException {
+        if (cells.isEmpty()) {
+            throw new IOException("Animation grid has no cells");
+        }
 
-            int avgDelay = 100;
-            if (delays != null && !delays.isEmpty()) {
-                avgDelay = (int) delays.stream().mapToInt(Integer::intValue).average().orElse(100);
-            }
-            dos.writeShort(avgDelay);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            AnimIndex index = encodeAnimGrid(cells, delays, syncId, out);
+            out.flush();
 
-            for (int i = 0; i < frameCount; i++) {
-                int delay = (delays != null && i < delays.size()) ? delays.get(i) : avgDelay;
-                int diff = delay - avgDelay;
-                dos.writeShort(diff);
+            ByteBuffer table = ByteBuffer.wrap(index.table);
+            long position = index.position;
+            while (table.hasRemaining()) {
+                position += channel.write(table, position);
             }
+        }
+    }
 
-            int[] colorCount = new int[256];
-            for (List<byte[]> frames : cells.values()) {
-                for (byte[] frame : frames) {
-                    for (byte b : frame) {
-                        colorCount[b & 0xFF]++;
-                    }
-                }
-            }
+    private static AnimIndex encodeAnimGrid(Map<Integer, List<byte[]>> cells, List<Integer> delays, long syncId,
+                                            OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
 
-            int uniqueColors = 0;
-            byte[] colorToIndex = new byte[256];
-            byte[] indexToColor = new byte[256];
+        dos.writeByte('E');
+        dos.writeByte('G');
+        dos.writeByte('A');
+        dos.writeByte('3');
 
-            for (int i = 0; i < 256; i++) {
-                if (colorCount[i] > 0) {
-                    colorToIndex[i] = (byte) uniqueColors;
-                    indexToColor[uniqueColors] = (byte) i;
-                    uniqueColors++;
-                }
-            }
+        dos.writeLong(syncId);
 
-            if (uniqueColors == 0) uniqueColors = 1;
+        List<Integer> mapIds = new ArrayList<>(cells.keySet());
+        Collections.sort(mapIds);
 
-            dos.writeByte(uniqueColors & 0xFF);
-            for (int i = 0; i < uniqueColors; i++) {
-                dos.writeByte(indexToColor[i]);
-            }
+        int frameCount = cells.get(mapIds.get(0)).size();
 
-            int bpp = getBitsPerPixel(uniqueColors);
-            dos.writeByte(bpp);
+        dos.writeShort(mapIds.size());
+        dos.writeShort(frameCount);
 
-            ByteArrayOutputStream frameData = new ByteArrayOutputStream();
+        for (int mapId : mapIds) {
+            dos.writeInt(mapId);
+        }
 
-            Map<Integer, byte[]> prevTemporal = new HashMap<>();
+        int avgDelay = 100;
+        if (delays != null && !delays.isEmpty()) {
+            avgDelay = (int) delays.stream().mapToInt(Integer::intValue).average().orElse(100);
+        }
+        dos.writeShort(avgDelay);
 
-            for (int f = 0; f < frameCount; f++) {
-                byte[] prevSpatial = null;
+        for (int i = 0; i < frameCount; i++) {
+            int delay = (delays != null && i < delays.size()) ? delays.get(i) : avgDelay;
+            int diff = delay - avgDelay;
+            dos.writeShort(diff);
+        }
 
-                for (int mapId : mapIds) {
-                    byte[] frame = cells.get(mapId).get(f);
+        int[] colorCount = new int[256];
+        for (List<byte[]> frames : cells.values()) {
+            for (byte[] frame : frames) {
+                for (byte b : frame) {
+                    colorCount[b & 0xFF]++;
+                }
+            }
+        }
 
-                    byte[] remapped = new byte[MAP_SIZE];
-                    for (int i = 0; i < MAP_SIZE; i++) {
-                        remapped[i] = colorToIndex[frame[i] & 0xFF];
-                    }
+        int uniqueColors = 0;
+        byte[] colorToIndex = new byte[256];
+        byte[] indexToColor = new byte[256];
 
-                    byte[] temporalRef = prevTemporal.get(mapId);
+        for (int i = 0; i < 256; i++) {
+            if (colorCount[i] > 0) {
+                colorToIndex[i] = (byte) uniqueColors;
+                indexToColor[uniqueColors] = (byte) i;
+                uniqueColors++;
+            }
+        }
 
-                    byte[] bestData;
-                    int bestMarker;
+        if (uniqueColors == 0) uniqueColors = 1;
 
-                    byte[] fullPacked = packBits(remapped, bpp);
-                    bestData = fullPacked;
-                    bestMarker = 0;
+        dos.writeByte(uniqueColors & 0xFF);
+        for (int i = 0; i < uniqueColors; i++) {
+            dos.writeByte(indexToColor[i]);
+        }
 
-                    if (temporalRef != null) {
-                        EncodingResult temporal = tryDelta(remapped, temporalRef, bpp);
-                        if (temporal.size < bestData.length) {
-                            bestData = temporal.data;
-                            bestMarker = temporal.marker | 0x10;
-                        }
-                    }
+        int bpp = getBitsPerPixel(uniqueColors);
+        dos.writeByte(bpp);
+
+        Codec codec = animationCodec;
+        int groupCount = (frameCount + ANIM_GROUP_SIZE - 1) / ANIM_GROUP_SIZE;
+        dos.writeShort(ANIM_GROUP_SIZE);
+        dos.writeByte(codec.id);
+
+        // One bit per cell and frame, set when the frame is identical to the one before
+        // it, so a lazy reader knows which frames share pixels without decoding them.
+        int repeatBytes = (frameCount + 7) / 8;
+        for (int mapId : mapIds) {
+            List<byte[]> frames = cells.get(mapId);
+            byte[] bits = new byte[repeatBytes];
+            for (int f = 1; f < frameCount; f++) {
+                byte[] frame = frames.get(f);
+                byte[] prev = frames.get(f - 1);
+                if (frame == prev || Arrays.equals(frame, prev)) {
+                    bits[f >> 3] |= (byte) (1 << (f & 7));
+                }
+            }
+            dos.write(bits);
+        }
 
-                    if (prevSpatial != null) {
-                        EncodingResult spatial = tryDelta(remapped, prevSpatial, bpp);
-                        if (spatial.size < bestData.length) {
-                            bestData = spatial.data;
-                            bestMarker = spatial.marker | 0x20;
-                        }
-                    }
+        // Index: absolute offset, raw size and compressed size of every group. It is
+        // reserved here and handed back to the caller to fill in once the sizes are known.
+        dos.writeInt(groupCount);
+        int indexPosition = dos.size();
+        byte[] table = new byte[groupCount * 12];
+        dos.write(table);
+        ByteBuffer index = ByteBuffer.wrap(table);
+
+        List<List<byte[]>> frames = new ArrayList<>(mapIds.size());
+        for (int mapId : mapIds) {
+            frames.add(cells.get(mapId));
+        }
 
-                    frameData.write(bestMarker);
-                    if ((bestMarker & 0x0F) != 3) {
-                        writeShort(frameData, bestData.length);
-                        frameData.write(bestData);
+        // Groups share nothing, so they are encoded side by side. A window of them is done
+        // at a time and written out in group order, which keeps the output identical to a
+        // serial encode and bounds how many groups are held at once.
+        int window = Math.max(1, Runtime.getRuntime().availableProcessors());
+        for (int from = 0; from < groupCount; from += window) {
+            int first = from;
+            EncodedGroup[] encoded = new EncodedGroup[Math.min(window, groupCount - from)];
+            try {
+                java.util.stream.IntStream.range(0, encoded.length).parallel().forEach(i -> {
+                    int g = first + i;
+                    int end = Math.min(frameCount, (g + 1) * ANIM_GROUP_SIZE);
+                    try {
+                        encoded[i] = encodeGroup(frames, g * ANIM_GROUP_SIZE, end, colorToIndex, bpp, codec);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-
-                    prevTemporal.put(mapId, remapped);
-                    prevSpatial = remapped;
-                }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
 
-            byte[] rawFrameData = frameData.toByteArray();
-            byte[] compressedFrameData = deflate(rawFrameData, Deflater.BEST_SPEED);
+            for (EncodedGroup group : encoded) {
+                index.putInt(dos.size());
+                index.putInt(group.rawSize);
+                index.putInt(group.data.length);
+                dos.write(group.data);
+            }
+        }
 
-            dos.writeInt(rawFrameData.length);
-            dos.writeInt(compressedFrameData.length);
-            dos.write(compressedFrameData);
+        dos.flush();
+        return new AnimIndex(indexPosition, table);
 
-            dos.close();
+    }
 
-            return baos.toByteArray();
+    private static final class AnimIndex {
+        final int position;
+        final byte[] table;
 
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to compress animation grid", e);
-            return new byte[0];
+        AnimIndex(int position, byte[] table) {
+            this.position = position;
+            this.table = table;
         }
     }
 
-    private static class EncodingResult {
+    private static final class EncodedGroup {
+        final int rawSize;
         final byte[] data;
-        final int marker;
-        final int size;
 
-        EncodingResult(byte[] data, int marker) {
+        EncodedGroup(int rawSize, byte[] data) {
+            this.rawSize = rawSize;
             this.data = data;
-            this.marker = marker;
-            this.size = (marker == 3) ? 1 : data.length + 3;
         }
     }
 
-    private static EncodingResult tryDelta(byte[] current, byte[] reference, int bpp) {
-        int diffCount = 0;
-        for (int i = 0; i < MAP_SIZE; i++) {
-            if (current[i] != reference[i]) diffCount++;
-        }
-
-        if (diffCount == 0) {
-            return new EncodingResult(new byte[0], 3);
+    // Per-thread buffers for encoding a group: the remapped cells of the current and the
+    // previous frame, swapped every frame, and room for one packed cell.
+    private static final class GroupScratch {
+        byte[][] current = new byte[0][];
+        byte[][] previous = new byte[0][];
+        final byte[] packed = new byte[MAP_SIZE];
+        final byte[] xor = new byte[MAP_SIZE];
+
+        void ensure(int cellCount) {
+            if (current.length < cellCount) {
+                current = new byte[cellCount][MAP_SIZE];
+                previous = new byte[cellCount][MAP_SIZE];
+            }
         }
+    }
 
-        if (diffCount < MAP_SIZE / 8) {
-            try {
-                ByteArrayOutputStream sparse = new ByteArrayOutputStream();
-                writeShort(sparse, diffCount);
+    private static final ThreadLocal<GroupScratch> TL_GROUP = ThreadLocal.withInitial(GroupScratch::new);
+
+    // Encodes frames [first, end) of every cell. Each cell is stored as the smallest of a
+    // full frame, a delta against its own previous frame and a delta against the previous
+    // cell; sizes are worked out from the diff counts and only the winner is written.
+    private static EncodedGroup encodeGroup(List<List<byte[]>> frames, int first, int end,
+                                            byte[] colorToIndex, int bpp, Codec codec) throws IOException {
+        int cellCount = frames.size();
+        GroupScratch scratch = TL_GROUP.get();
+        scratch.ensure(cellCount);
+        byte[][] current = scratch.current;
+        byte[][] previous = scratch.previous;
+
+        int fullLength = bpp >= 8 ? MAP_SIZE : MAP_SIZE / (8 / bpp);
+        ByteArrayOutputStream frameData = new ByteArrayOutputStream();
+
+        for (int f = first; f < end; f++) {
+            for (int c = 0; c < cellCount; c++) {
+                byte[] frame = frames.get(c).get(f);
+                byte[] remapped = current[c];
                 for (int i = 0; i < MAP_SIZE; i++) {
-                    if (current[i] != reference[i]) {
-                        writeShort(sparse, i);
-                        sparse.write(current[i] & 0xFF);
+                    remapped[i] = colorToIndex[frame[i] & 0xFF];
+                }
+
+                int bestMarker = 0;
+                int bestLength = fullLength;
+                int bestDiff = 0;
+                byte[] bestRef = null;
+
+                // Every group opens on a keyframe, so it can be inflated on its own.
+                if (f > first) {
+                    int diff = countDiff(remapped, previous[c]);
+                    int marker = deltaMarker(diff);
+                    int length = deltaLength(marker, diff, fullLength);
+                    if ((marker == 3 ? 1 : length + 3) < bestLength) {
+                        bestMarker = marker | 0x10;
+                        bestLength = length;
+                        bestDiff = diff;
+                        bestRef = previous[c];
+                    }
+                }
+
+                if (c > 0) {
+                    int diff = countDiff(remapped, current[c - 1]);
+                    int marker = deltaMarker(diff);
+                    int length = deltaLength(marker, diff, fullLength);
+                    if ((marker == 3 ? 1 : length + 3) < bestLength) {
+                        bestMarker = marker | 0x20;
+                        bestLength = length;
+                        bestDiff = diff;
+                        bestRef = current[c - 1];
                     }
                 }
-                return new EncodingResult(sparse.toByteArray(), 1);
-            } catch (IOException e) {
-                logger.log(Level.FINE, "Sparse encoding failed, falling back to XOR", e);
+
+                frameData.write(bestMarker);
+                switch (bestMarker & 0x0F) {
+                    case 0 -> {
+                        writeShort(frameData, bestLength);
+                        writePacked(frameData, remapped, bpp, scratch.packed);
+                    }
+                    case 1 -> {
+                        writeShort(frameData, bestLength);
+                        writeShort(frameData, bestDiff);
+                        for (int i = 0; i < MAP_SIZE; i++) {
+                            if (remapped[i] != bestRef[i]) {
+                                writeShort(frameData, i);
+                                frameData.write(remapped[i] & 0xFF);
+                            }
+                        }
+                    }
+                    case 2 -> {
+                        byte[] xor = scratch.xor;
+                        for (int i = 0; i < MAP_SIZE; i++) {
+                            xor[i] = (byte) (remapped[i] ^ bestRef[i]);
+                        }
+                        writeShort(frameData, bestLength);
+                        writePacked(frameData, xor, bpp, scratch.packed);
+                    }
+                    default -> {}
+                }
             }
+
+            byte[][] swap = previous;
+            previous = current;
+            current = swap;
         }
 
-        byte[] xorData = new byte[MAP_SIZE];
+        byte[] raw = frameData.toByteArray();
+        return new EncodedGroup(raw.length, compress(codec, raw, Deflater.BEST_SPEED));
+    }
+
+    private static int countDiff(byte[] a, byte[] b) {
+        int diff = 0;
         for (int i = 0; i < MAP_SIZE; i++) {
-            xorData[i] = (byte) (current[i] ^ reference[i]);
+            if (a[i] != b[i]) diff++;
         }
-        byte[] packed = packBits(xorData, bpp);
-        return new EncodingResult(packed, 2);
+        return diff;
+    }
+
+    // 3 unchanged, 1 sparse (u16 count, then u16 index and value per pixel), 2 packed xor.
+    private static int deltaMarker(int diff) {
+        if (diff == 0) return 3;
+        return diff < MAP_SIZE / 8 ? 1 : 2;
+    }
+
+    private static int deltaLength(int marker, int diff, int fullLength) {
+        return switch (marker) {
+            case 3 -> 0;
+            case 1 -> 2 + diff * 3;
+            default -> fullLength;
+        };
+    }
+
+    private static void writePacked(OutputStream out, byte[] data, int bpp, byte[] packed) throws IOException {
+        if (bpp >= 8) {
+            out.write(data, 0, MAP_SIZE);
+            return;
+        }
+
+        // Same layout as packBits: the first pixel of each byte in its high bits.
+        int pixelsPerByte = 8 / bpp;
+        int mask = (1 << bpp) - 1;
+        int length = MAP_SIZE / pixelsPerByte;
+        for (int j = 0, i = 0; j < length; j++) {
+            int v = 0;
+            for (int k = 0; k < pixelsPerByte; k++, i++) {
+                v = (v << bpp) | (data[i] & mask);
+            }
+            packed[j] = (byte) v;
+        }
+        out.write(packed, 0, length);
     }
 
     public static AnimGridData decompressAnimGrid(byte[] data) {
+        if (isAnimGridV2(data)) {
+            try {
+                return readAnimGrid(ByteBuffer.wrap(data), null, data.length, null).decodeAll();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to decompress animation grid", e);
+                return null;
+            }
+        }
+
         try {
             ByteArrayInputStream bais = new ByteArrayInputStream(data);
             DataInputStream dis = new DataInputStream(bais);
@@ -644,6 +901,7 @@ public final class EmageCompression {
 
             ByteArrayInputStream frameIn = new ByteArrayInputStream(rawFrameData);
             Map<Integer, byte[]> prevTemporal = new HashMap<>();
+            Map<Integer, byte[]> prevResults = new HashMap<>();
 
             for (int f = 0; f < frameCount; f++) {
                 byte[] prevSpatial = null;
@@ -662,35 +920,16 @@ public final class EmageCompression {
                         reference = null;
                     }
 
-                    byte[] remapped;
-
-                    if (marker == 3) {
-                        remapped = reference != null ? reference.clone() : new byte[MAP_SIZE];
-                    } else {
-                        int dataLen = readShort(frameIn);
-                        byte[] frameData = readExact(frameIn, dataLen);
-
-                        if (marker == 0) {
-                            remapped = unpackBits(frameData, bpp, MAP_SIZE);
-                        } else if (marker == 1) {
-                            remapped = reference != null ? reference.clone() : new byte[MAP_SIZE];
-                            ByteArrayInputStream sparseIn = new ByteArrayInputStream(frameData);
-                            int count = readShort(sparseIn);
-                            for (int i = 0; i < count; i++) {
-                                int pos = readShort(sparseIn);
-                                int val = sparseIn.read() & 0xFF;
-                                if (pos < MAP_SIZE) remapped[pos] = (byte) val;
-                            }
-                        } else {
-                            byte[] xorData = unpackBits(frameData, bpp, MAP_SIZE);
-                            byte[] ref = reference != null ? reference : new byte[MAP_SIZE];
-                            remapped = new byte[MAP_SIZE];
-                            for (int i = 0; i < MAP_SIZE; i++) {
-                                remapped[i] = (byte) (xorData[i] ^ ref[i]);
-                            }
-                        }
+                    // An unchanged cell shares the previous frame's array, like freshly
+                    // processed GIFs do, so the renderer can tell nothing needs sending.
+                    if (marker == 3 && refType == 1 && prevResults.containsKey(mapId)) {
+                        cells.get(mapId).add(prevResults.get(mapId));
+                        prevSpatial = prevTemporal.get(mapId);
+                        continue;
                     }
 
+                    byte[] remapped = decodeCell(frameIn, marker, reference, bpp);
+
                     byte[] result = new byte[MAP_SIZE];
                     for (int i = 0; i < MAP_SIZE; i++) {
                         result[i] = indexToColor[remapped[i] & 0xFF];
@@ -698,6 +937,7 @@ public final class EmageCompression {
 
                     cells.get(mapId).add(result);
                     prevTemporal.put(mapId, remapped);
+                    prevResults.put(mapId, result);
                     prevSpatial = remapped;
                 }
             }
@@ -710,6 +950,139 @@ public final class EmageCompression {
         }
     }
 
+    private static byte[] decodeCell(InputStream in, int marker, byte[] reference, int bpp) throws IOException {
+        if (marker == 3) {
+            return reference != null ? reference.clone() : new byte[MAP_SIZE];
+        }
+
+        int dataLen = readShort(in);
+        byte[] frameData = readExact(in, dataLen);
+
+        if (marker == 0) {
+            return unpackBits(frameData, bpp, MAP_SIZE);
+        }
+
+        if (marker == 1) {
+            byte[] remapped = reference != null ? reference.clone() : new byte[MAP_SIZE];
+            ByteArrayInputStream sparseIn = new ByteArrayInputStream(frameData);
+            int count = readShort(sparseIn);
+            for (int i = 0; i < count; i++) {
+                int pos = readShort(sparseIn);
+                int val = sparseIn.read() & 0xFF;
+                if (pos < MAP_SIZE) remapped[pos] = (byte) val;
+            }
+            return remapped;
+        }
+
+        byte[] xorData = unpackBits(frameData, bpp, MAP_SIZE);
+        byte[] ref = reference != null ? reference : new byte[MAP_SIZE];
+        byte[] remapped = new byte[MAP_SIZE];
+        for (int i = 0; i < MAP_SIZE; i++) {
+            remapped[i] = (byte) (xorData[i] ^ ref[i]);
+        }
+        return remapped;
+    }
+
+    // Old EGA files carry the sync id where EGA2 has its version byte; ids handed out by
+    // the plugin are millisecond timestamps, so that byte is always zero there.
+    private static boolean isAnimGridV2(byte[] data) {
+        return data.length >= 4 && data[0] == 'E' && data[1] == 'G' && data[2] == 'A'
+                && (data[3] == '2' || data[3] == '3');
+    }
+
+    // Reads only the header and group index of an EGA2/EGA3 file; frames are read and decoded
+    // group by group when asked for. Nothing stays open or mapped in between, so the file can
+    // be deleted or replaced at any time (Windows refuses both while a mapping exists).
+    // Returns null for files in an older layout.
+    public static AnimGridFile openAnimGrid(File file) throws IOException {
+        Path path = file.toPath();
+        FileTime modified = Files.getLastModifiedTime(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4) return null;
+
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, 16));
+            readFully(channel, head, 0);
+            if (!isAnimGridV2(head.array())) return null;
+            if (size < 16) throw new IOException("Truncated animation header");
+
+            int cellCount = head.getShort(12) & 0xFFFF;
+            int frameCount = head.getShort(14) & 0xFFFF;
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(size, maxHeaderSize(cellCount, frameCount)));
+            readFully(channel, header, 0);
+
+            return readAnimGrid(header, path, size, modified);
+        }
+    }
+
+    // The header with one frame per group, the most groups a file can have.
+    private static long maxHeaderSize(int cellCount, int frameCount) {
+        return 4 + 8 + 2 + 2 + cellCount * 4L + 2 + frameCount * 2L + 1 + 256 + 1 + 2 + 1
+                + (long) cellCount * ((frameCount + 7) / 8) + 4 + frameCount * 12L;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + dst.position());
+            if (n < 0) throw new EOFException();
+        }
+        dst.flip();
+    }
+
+    // Without a path the buffer holds the whole file and groups are sliced from it.
+    private static AnimGridFile readAnimGrid(ByteBuffer buf, Path path, long length, FileTime modified)
+            throws IOException {
+        try {
+            int version = buf.get(3);
+            buf.position(4);
+            long syncId = buf.getLong();
+            int cellCount = buf.getShort() & 0xFFFF;
+            int frameCount = buf.getShort() & 0xFFFF;
+
+            List<Integer> mapIds = new ArrayList<>(cellCount);
+            for (int i = 0; i < cellCount; i++) {
+                mapIds.add(buf.getInt());
+            }
+
+            int avgDelay = buf.getShort() & 0xFFFF;
+            List<Integer> delays = new ArrayList<>(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                delays.add(Math.max(20, avgDelay + buf.getShort()));
+            }
+
+            int uniqueColors = buf.get() & 0xFF;
+            if (uniqueColors == 0) uniqueColors = 256;
+
+            byte[] indexToColor = new byte[256];
+            buf.get(indexToColor, 0, uniqueColors);
+
+            int bpp = buf.get() & 0xFF;
+            int groupSize = buf.getShort() & 0xFFFF;
+            Codec codec = version >= '3' ? Codec.byId(buf.get() & 0xFF) : Codec.DEFLATE;
+
+            byte[][] repeats = new byte[cellCount][(frameCount + 7) / 8];
+            for (byte[] bits : repeats) {
+                buf.get(bits);
+            }
+
+            int groupCount = buf.getInt();
+            if (groupSize == 0 || groupCount != (frameCount + groupSize - 1) / groupSize) {
+                throw new IOException("Corrupt group index");
+            }
+
+            int[] index = new int[groupCount * 3];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = buf.getInt();
+            }
+
+            return new AnimGridFile(path == null ? buf : null, path, length, modified, syncId, mapIds,
+                    delays, frameCount, groupSize, codec, indexToColor, bpp, repeats, index);
+
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated animation header", e);
+        }
+    }
+
     private static AnimGridData decompressLegacyAnimGrid(byte[] data) {
         try {
             if (data.length < 3) return null;
@@ -730,7 +1103,7 @@ public final class EmageCompression {
                     byte[] compressed = new byte[compressedSize];
                     dis.readFully(compressed);
                     mapData = inflate(compressed, originalSize);
-                } else if (version == '1') {
+                } else if (version == '1' || version == '2') {
                     dis.close();
                     mapData = decompressSingleStatic(data);
                 } else {
@@ -830,6 +1203,29 @@ public final class EmageCompression {
         return unpacked;
     }
 
+    // deflateLevel is what DEFLATE uses for this kind of data; DEFLATE_MAX always goes
+    // for the smallest output.
+    private static byte[] compress(Codec codec, byte[] data, int deflateLevel) {
+        return switch (codec) {
+            case LZ4 -> Lz4.compress(data);
+            case DEFLATE_MAX -> deflate(data, Deflater.BEST_COMPRESSION);
+            default -> deflate(data, deflateLevel);
+        };
+    }
+
+    private static byte[] decompress(Codec codec, byte[] data, int rawSize) throws IOException {
+        return codec == Codec.LZ4 ? Lz4.decompress(data, 0, data.length, rawSize) : inflate(data, rawSize);
+    }
+
+    private static byte[] decompress(Codec codec, ByteBuffer data, int rawSize) throws IOException {
+        if (codec != Codec.LZ4) {
+            return inflate(data, rawSize);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return Lz4.decompress(bytes, 0, bytes.length, rawSize);
+    }
+
     private static byte[] deflate(byte[] data, int level) {
         Deflater deflater = new Deflater(level);
         try {
@@ -873,6 +1269,29 @@ public final class EmageCompression {
         }
     }
 
+    private static byte[] inflate(ByteBuffer data, int expectedSize) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+
+            byte[] result = new byte[expectedSize];
+            int offset = 0;
+
+            while (!inflater.finished() && offset < expectedSize) {
+                int count = inflater.inflate(result, offset, expectedSize - offset);
+                if (count == 0 && inflater.needsInput()) break;
+                offset += count;
+            }
+
+            return result;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Inflate failed", e);
+            return new byte[expectedSize];
+        } finally {
+            inflater.end();
+        }
+    }
+
     private static byte[] readExact(InputStream in, int len) throws IOException {
         byte[] buf = new byte[len];
         int offset = 0;
@@ -905,6 +1324,152 @@ public final class EmageCompression {
         }
     }
 
+    public static final class AnimGridFile {
+        public final long syncId;
+        public final List<Integer> mapIds;
+        public final List<Integer> delays;
+        public final int frameCount;
+        public final int groupSize;
+
+        private final ByteBuffer buf;
+        private final Path path;
+        private final FileTime modified;
+        private final long length;
+        private final Codec codec;
+        private final byte[] indexToColor;
+        private final int bpp;
+        private final byte[][] repeats;
+        private final int[] index;
+
+        private AnimGridFile(ByteBuffer buf, Path path, long length, FileTime modified, long syncId,
+                             List<Integer> mapIds, List<Integer> delays, int frameCount, int groupSize,
+                             Codec codec, byte[] indexToColor, int bpp, byte[][] repeats, int[] index) {
+            this.buf = buf;
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+            this.codec = codec;
+            this.syncId = syncId;
+            this.mapIds = mapIds;
+            this.delays = delays;
+            this.frameCount = frameCount;
+            this.groupSize = groupSize;
+            this.indexToColor = indexToColor;
+            this.bpp = bpp;
+            this.repeats = repeats;
+            this.index = index;
+        }
+
+        public int getGroupCount() {
+            return index.length / 3;
+        }
+
+        // True when the cell's frame has the same pixels as the frame before it.
+        public boolean repeatsPrevious(int cell, int frame) {
+            return frame > 0 && (repeats[cell][frame >> 3] & (1 << (frame & 7))) != 0;
+        }
+
+        // Decodes one group for every cell, as [cell][frame - group * groupSize]. Repeated
+        // frames inside the group come back as the same array.
+        public byte[][][] decodeGroup(int group) throws IOException {
+            int offset = index[group * 3];
+            int rawSize = index[group * 3 + 1];
+            int compressedSize = index[group * 3 + 2];
+            if (offset < 0 || compressedSize < 0 || offset > length - compressedSize) {
+                throw new IOException("Group " + group + " lies outside the file");
+            }
+
+            ByteBuffer data = buf != null ? buf.slice(offset, compressedSize) : readGroup(offset, compressedSize);
+            byte[] raw = decompress(codec, data, rawSize);
+            ByteArrayInputStream frameIn = new ByteArrayInputStream(raw);
+
+            int cellCount = mapIds.size();
+            int first = group * groupSize;
+            int count = Math.min(groupSize, frameCount - first);
+            byte[][][] out = new byte[cellCount][count][];
+            byte[][] prevTemporal = new byte[cellCount][];
+
+            for (int f = 0; f < count; f++) {
+                byte[] prevSpatial = null;
+
+                for (int c = 0; c < cellCount; c++) {
+                    int header = frameIn.read() & 0xFF;
+                    int refType = (header >> 4) & 0x0F;
+                    int marker = header & 0x0F;
+
+                    byte[] reference = refType == 1 ? prevTemporal[c] : (refType == 2 ? prevSpatial : null);
+                    byte[] remapped = decodeCell(frameIn, marker, reference, bpp);
+
+                    if (f > 0 && repeatsPrevious(c, first + f)) {
+                        out[c][f] = out[c][f - 1];
+                    } else {
+                        byte[] result = new byte[MAP_SIZE];
+                        for (int i = 0; i < MAP_SIZE; i++) {
+                            result[i] = indexToColor[remapped[i] & 0xFF];
+                        }
+                        out[c][f] = result;
+                    }
+
+                    prevTemporal[c] = remapped;
+                    prevSpatial = remapped;
+                }
+            }
+
+            return out;
+        }
+
+        // A file saved again under the same name no longer matches this index, so its groups
+        // fail instead of decoding into garbage.
+        private ByteBuffer readGroup(int offset, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() != length || !Files.getLastModifiedTime(path).equals(modified)) {
+                    throw new IOException(path.getFileName() + " changed on disk");
+                }
+                ByteBuffer data = ByteBuffer.allocate(size);
+                readFully(channel, data, offset);
+                return data;
+            }
+        }
+
+        public AnimGridData decodeAll() throws IOException {
+            int cellCount = mapIds.size();
+            List<List<byte[]>> lists = new ArrayList<>(cellCount);
+            for (int c = 0; c < cellCount; c++) {
+                lists.add(new ArrayList<>(frameCount));
+            }
+
+            // Groups share nothing, so they inflate side by side.
+            byte[][][][] groups = new byte[getGroupCount()][][][];
+            try {
+                java.util.stream.IntStream.range(0, groups.length).parallel().forEach(g -> {
+                    try {
+                        groups[g] = decodeGroup(g);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            for (byte[][][] decoded : groups) {
+                for (int c = 0; c < cellCount; c++) {
+                    List<byte[]> frames = lists.get(c);
+                    for (byte[] frame : decoded[c]) {
+                        int f = frames.size();
+                        frames.add(repeatsPrevious(c, f) ? frames.get(f - 1) : frame);
+                    }
+                }
+            }
+
+            Map<Integer, List<byte[]>> cells = new HashMap<>();
+            for (int c = 0; c < cellCount; c++) {
+                cells.put(mapIds.get(c), lists.get(c));
+            }
+            return new AnimGridData(syncId, cells, delays);
+        }
+    }
+
     public static class AnimGridData {
         public final long syncId;
         public final Map<Integer, List<byte[]>> cells;
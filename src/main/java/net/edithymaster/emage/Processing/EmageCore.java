@@ -2,6 +2,7 @@ package net.edithymaster.emage.Processing;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -11,17 +12,13 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
-import javax.imageio.stream.ImageInputStream;
 
 import net.edithymaster.emage.Config.EmageConfig;
-import org.w3c.dom.NodeList;
 
 public final class EmageCore {
 
@@ -38,29 +35,40 @@ public final class EmageCore {
 
     private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
             Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
-            r -> {
-                Thread t = new Thread(r, "Emage-Processor-" + THREAD_COUNTER.incrementAndGet());
-                t.setDaemon(true);
-                t.setPriority(Thread.MIN_PRIORITY);
-                return t;
-            }
+            workerFactory("Emage-Processor-")
+    );
+
+    // Static images get their own pool so a large upload never queues behind GIF frames;
+    // each request is further capped by maxParallelTiles.
+    private static final ExecutorService TILE_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            workerFactory("Emage-Tile-")
     );
 
-    private static final ThreadLocal<double[]> TL_LIN_R = new ThreadLocal<>();
-    private static final ThreadLocal<double[]> TL_LIN_G = new ThreadLocal<>();
-    private static final ThreadLocal<double[]> TL_LIN_B = new ThreadLocal<>();
-    private static final ThreadLocal<boolean[]> TL_TRANSPARENT = new ThreadLocal<>();
+    private static final ThreadLocal<float[]> TL_ERROR_ROWS = new ThreadLocal<>();
+    private static final ThreadLocal<boolean[]> TL_REGION_MASK = new ThreadLocal<>();
 
     private static final ConcurrentLinkedQueue<byte[]> BUFFER_POOL = new ConcurrentLinkedQueue<>();
     private static volatile boolean usePool = true;
     private static volatile int maxPoolSize = 100;
 
+    private static final boolean SIMD_AVAILABLE = detectSimdSupport();
+    private static volatile boolean simdDither = false;
+    private static volatile ResampleFilter resampleFilter = ResampleFilter.AREA;
+    private static volatile int maxParallelTiles = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
     public enum Quality {
         FAST,
         BALANCED,
         HIGH
     }
 
+    public enum ResampleFilter {
+        AREA,
+        MITCHELL,
+        LANCZOS
+    }
+
     public static void setUsePool(boolean use) {
         usePool = use;
     }
@@ -77,6 +85,56 @@ public final class EmageCore {
         maxPoolSize = size;
     }
 
+    private static ThreadFactory workerFactory(String prefix) {
+        return r -> {
+            Thread t = new Thread(r, prefix + THREAD_COUNTER.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        };
+    }
+
+    public static void setResampleFilter(ResampleFilter filter) {
+        resampleFilter = filter;
+    }
+
+    public static ResampleFilter getResampleFilter() {
+        return resampleFilter;
+    }
+
+    public static void setMaxParallelTiles(int tiles) {
+        maxParallelTiles = tiles > 0 ? tiles : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public static int getMaxParallelTiles() {
+        return maxParallelTiles;
+    }
+
+    public static void setSimdDither(boolean enabled) {
+        if (enabled && !SIMD_AVAILABLE) {
+            logger.warning("SIMD dithering requested but the Vector API is unavailable; "
+                    + "start the server with --add-modules jdk.incubator.vector to enable it. Using scalar path.");
+        }
+        simdDither = enabled && SIMD_AVAILABLE;
+    }
+
+    public static boolean isSimdDither() {
+        return simdDither;
+    }
+
+    // The vector class is only touched once the incubator module is known to be in the boot
+    // layer, otherwise linking it would fail with NoClassDefFoundError.
+    private static boolean detectSimdSupport() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorDither.isUsable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
     public static byte[] acquireBuffer() {
         if (usePool) {
             byte[] buf = BUFFER_POOL.poll();
@@ -126,6 +184,10 @@ public final class EmageCore {
         EmageColors.initCache();
     }
 
+    public static boolean initColorSystem(int bits, boolean refine, File folder) {
+        return EmageColors.initCache(bits, refine, folder);
+    }
+
     public static byte matchColor(int r, int g, int b) {
         return EmageColors.matchColor(r, g, b);
     }
@@ -143,83 +205,227 @@ public final class EmageCore {
             return src;
         }
 
-        if (src.getWidth() > width * 2 || src.getHeight() > height * 2) {
-            return progressiveResize(src, width, height);
-        }
-
         BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = dest.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g.drawImage(src, 0, 0, width, height, null);
-        g.dispose();
+        int[] out = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+        Resampler resampler = new Resampler(src.getWidth(), src.getHeight(), width, height, resampleFilter);
+
+        // A top-level INT_ARGB raster is exactly width * height ints, so it can be read in place.
+        if (src.getType() == BufferedImage.TYPE_INT_ARGB && src.getRaster().getParent() == null) {
+            int[] in = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+            resampler.resample(in, 0, src.getWidth(), out, 0, width);
+        } else {
+            resampler.resample(src, out, 0, width);
+        }
         return dest;
     }
 
-    private static BufferedImage progressiveResize(BufferedImage src, int targetW, int targetH) {
-        BufferedImage current = src;
-        int w = current.getWidth();
-        int h = current.getHeight();
+    public static byte[] dither(BufferedImage img) {
+        return dither(img, Quality.BALANCED);
+    }
 
-        while (w > targetW * 2 || h > targetH * 2) {
-            int nextW = Math.max(targetW, w / 2);
-            int nextH = Math.max(targetH, h / 2);
+    public static byte[] dither(BufferedImage img, Quality quality) {
+        BufferedImage prepared = prepareImage(img, MAP_WIDTH, MAP_WIDTH);
+        int[] pixels = new int[MAP_SIZE];
+        prepared.getRGB(0, 0, MAP_WIDTH, MAP_WIDTH, pixels, 0, MAP_WIDTH);
+        return ditherPixels(pixels, quality);
+    }
 
-            BufferedImage next = new BufferedImage(nextW, nextH, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = next.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g.drawImage(current, 0, 0, nextW, nextH, null);
-            g.dispose();
+    @FunctionalInterface
+    public interface TileConsumer {
+        void accept(int tile, byte[] data);
+    }
 
-            current = next;
-            w = nextW;
-            h = nextH;
+    // Dithers the listed 128x128 tiles of an image that is already grid-sized. Tiles run on
+    // TILE_EXECUTOR, at most maxParallelTiles at a time for this call, and each result goes to
+    // the consumer on the worker thread as soon as it is done, in completion order. Blocks
+    // until every tile has finished; after a failure no further tiles start and it is rethrown.
+    //
+    // When seamless, error diffusion carries across tile borders as if the whole image were
+    // one canvas scanned left to right, except for the share a tile's first columns push down
+    // and to the left, since the tile there is already done. Ordered dithering is seamless
+    // already and takes the plain path.
+    public static void ditherTiles(BufferedImage image, List<Point> tiles, Quality quality,
+                                   boolean seamless, TileConsumer consumer) throws Exception {
+        if (seamless && quality != Quality.FAST) {
+            ditherTilesSeamless(image, tiles, quality, consumer);
+            return;
         }
 
-        if (w != targetW || h != targetH) {
-            BufferedImage dest = new BufferedImage(targetW, targetH, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = dest.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g.drawImage(current, 0, 0, targetW, targetH, null);
-            g.dispose();
-            current = dest;
+        int permits = maxParallelTiles;
+        Semaphore slots = new Semaphore(permits);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try {
+            for (int i = 0; i < tiles.size() && failure.get() == null; i++) {
+                slots.acquire();
+                int tile = i;
+                Point p = tiles.get(i);
+                try {
+                    TILE_EXECUTOR.execute(() -> {
+                        try {
+                            if (failure.get() != null) return;
+                            BufferedImage chunk = image.getSubimage(p.x * MAP_WIDTH, p.y * MAP_WIDTH, MAP_WIDTH, MAP_WIDTH);
+                            consumer.accept(tile, dither(chunk, quality));
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    slots.release();
+                    throw e;
+                }
+            }
+        } finally {
+            slots.acquireUninterruptibly(permits);
         }
 
-        return current;
+        Throwable t = failure.get();
+        if (t instanceof Exception e) throw e;
+        if (t instanceof Error e) throw e;
     }
 
-    public static byte[] dither(BufferedImage img) {
-        return dither(img, Quality.BALANCED);
+    // Wavefront over the whole grid: a tile starts once the tiles to its left, above and
+    // above-right are done, as those are the only ones whose error reaches it. Tiles without
+    // a target are still dithered so their error carries through, then their buffer is
+    // released.
+    private static void ditherTilesSeamless(BufferedImage image, List<Point> tiles, Quality quality,
+                                            TileConsumer consumer) throws Exception {
+        int gridW = image.getWidth() / MAP_WIDTH;
+        int gridH = image.getHeight() / MAP_WIDTH;
+        int total = gridW * gridH;
+
+        int[] wanted = new int[total];
+        Arrays.fill(wanted, -1);
+        for (int i = 0; i < tiles.size(); i++) {
+            Point p = tiles.get(i);
+            wanted[p.y * gridW + p.x] = i;
+        }
+
+        AtomicInteger[] waiting = new AtomicInteger[total];
+        for (int gy = 0; gy < gridH; gy++) {
+            for (int gx = 0; gx < gridW; gx++) {
+                int deps = (gx > 0 ? 1 : 0) + (gy > 0 ? 1 : 0) + (gy > 0 && gx + 1 < gridW ? 1 : 0);
+                waiting[gy * gridW + gx] = new AtomicInteger(deps);
+            }
+        }
+
+        SeamCarry carry = new SeamCarry(gridW, gridH);
+        BlockingQueue<Integer> ready = new LinkedBlockingQueue<>();
+        ready.add(0);
+
+        int permits = maxParallelTiles;
+        Semaphore slots = new Semaphore(permits);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try {
+            for (int started = 0; started < total && failure.get() == null; started++) {
+                slots.acquire();
+                int cell = ready.take();
+                if (cell < 0) {
+                    slots.release();
+                    break;
+                }
+
+                try {
+                    TILE_EXECUTOR.execute(() -> {
+                        try {
+                            if (failure.get() != null) return;
+
+                            int gx = cell % gridW;
+                            int gy = cell / gridW;
+                            int[] px = new int[MAP_SIZE];
+                            image.getRGB(gx * MAP_WIDTH, gy * MAP_WIDTH, MAP_WIDTH, MAP_WIDTH, px, 0, MAP_WIDTH);
+
+                            byte[] result = acquireBuffer();
+                            TileEdges edges = new TileEdges(carry, gx, gy);
+                            if (quality == Quality.HIGH) {
+                                diffuseJarvis(px, 0, MAP_WIDTH, result, null, 0, 0, MAP_WIDTH - 1, MAP_WIDTH - 1, edges);
+                            } else {
+                                diffuseFloydSteinberg(px, 0, MAP_WIDTH, result, null, 0, 0, MAP_WIDTH - 1, MAP_WIDTH - 1, edges);
+                            }
+
+                            if (gx + 1 < gridW) release(waiting, ready, cell + 1);
+                            if (gy + 1 < gridH) {
+                                release(waiting, ready, cell + gridW);
+                                if (gx > 0) release(waiting, ready, cell + gridW - 1);
+                            }
+
+                            if (wanted[cell] >= 0) {
+                                consumer.accept(wanted[cell], result);
+                            } else {
+                                releaseBuffer(result);
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                            ready.add(-1);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    slots.release();
+                    throw e;
+                }
+            }
+        } finally {
+            slots.acquireUninterruptibly(permits);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof Exception e) throw e;
+        if (t instanceof Error e) throw e;
     }
 
-    public static byte[] dither(BufferedImage img, Quality quality) {
-        BufferedImage prepared = prepareImage(img, MAP_WIDTH, MAP_WIDTH);
-        int[] pixels = new int[MAP_SIZE];
-        prepared.getRGB(0, 0, MAP_WIDTH, MAP_WIDTH, pixels, 0, MAP_WIDTH);
-        return ditherPixels(pixels, quality);
+    private static void release(AtomicInteger[] waiting, BlockingQueue<Integer> ready, int cell) {
+        if (waiting[cell].decrementAndGet() == 0) {
+            ready.add(cell);
+        }
     }
 
     public static byte[] ditherPixels(int[] pixels, Quality quality) {
+        return ditherPixels(pixels, 0, MAP_WIDTH, quality);
+    }
+
+    // Dithers the 128x128 tile starting at off in a larger pixel plane with the given row
+    // stride, so tiles can be read straight out of a whole resized frame.
+    static byte[] ditherPixels(int[] pixels, int off, int stride, Quality quality) {
         return switch (quality) {
-            case FAST -> ditherOrdered(pixels);
-            case BALANCED -> ditherFloydSteinberg(pixels);
-            case HIGH -> ditherJarvisGammaCorrected(pixels);
+            case FAST -> ditherOrdered(pixels, off, stride);
+            case BALANCED -> ditherFloydSteinberg(pixels, off, stride);
+            case HIGH -> ditherJarvisGammaCorrected(pixels, off, stride);
         };
     }
 
+    // Only the changed pixels, grown by DILATE, are re-dithered; everything else keeps the
+    // previous frame's index so static parts of an animation don't shimmer. Error diffusion
+    // runs over the bounding box of that region plus SEED_MARGIN pixels of unchanged context
+    // above and to the sides, where the previous output is replayed to rebuild the error the
+    // region would have received.
     public static byte[] ditherPixelsStable(int[] pixels, int[] prevPixels, byte[] prevResult, Quality quality) {
+        return ditherPixelsStable(pixels, prevPixels, 0, MAP_WIDTH, prevResult, quality);
+    }
+
+    // Both frames are read as the tile at off in planes sharing the same stride.
+    static byte[] ditherPixelsStable(int[] pixels, int[] prevPixels, int off, int stride,
+                                     byte[] prevResult, Quality quality) {
         if (prevPixels == null || prevResult == null) {
-            return ditherPixels(pixels, quality);
+            return ditherPixels(pixels, off, stride, quality);
         }
 
-        boolean[] changed = new boolean[MAP_SIZE];
         int changeCount = 0;
-        for (int i = 0; i < MAP_SIZE; i++) {
-            if (pixels[i] != prevPixels[i]) {
-                changed[i] = true;
-                changeCount++;
+        int minX = MAP_WIDTH, minY = MAP_WIDTH, maxX = -1, maxY = -1;
+        for (int y = 0; y < MAP_WIDTH; y++) {
+            int rowOff = off + y * stride;
+            for (int x = 0; x < MAP_WIDTH; x++) {
+                if (pixels[rowOff + x] != prevPixels[rowOff + x]) {
+                    changeCount++;
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                    if (y < minY) minY = y;
+                    maxY = y;
+                }
             }
         }
 
@@ -230,35 +436,48 @@ public final class EmageCore {
         }
 
         if (changeCount > MAP_SIZE / 2) {
-            return ditherPixels(pixels, quality);
+            return ditherPixels(pixels, off, stride, quality);
         }
 
-        boolean[] dilated = new boolean[MAP_SIZE];
-        for (int y = 0; y < MAP_WIDTH; y++) {
-            for (int x = 0; x < MAP_WIDTH; x++) {
-                if (!changed[y * MAP_WIDTH + x]) continue;
-                int yMin = Math.max(0, y - 2);
-                int yMax = Math.min(MAP_WIDTH - 1, y + 2);
-                int xMin = Math.max(0, x - 2);
-                int xMax = Math.min(MAP_WIDTH - 1, x + 2);
-                for (int dy = yMin; dy <= yMax; dy++) {
-                    int rowOff = dy * MAP_WIDTH;
-                    for (int dx = xMin; dx <= xMax; dx++) {
-                        dilated[rowOff + dx] = true;
-                    }
+        int x0 = Math.max(0, minX - DILATE);
+        int y0 = Math.max(0, minY - DILATE);
+        int x1 = Math.min(MAP_WIDTH - 1, maxX + DILATE);
+        int y1 = Math.min(MAP_WIDTH - 1, maxY + DILATE);
+
+        boolean[] mask = getRegionMask();
+        for (int y = minY; y <= maxY; y++) {
+            int rowOff = off + y * stride;
+            for (int x = minX; x <= maxX; x++) {
+                if (pixels[rowOff + x] == prevPixels[rowOff + x]) continue;
+                int yMax = Math.min(MAP_WIDTH - 1, y + DILATE);
+                int xMin = Math.max(0, x - DILATE);
+                int xMax = Math.min(MAP_WIDTH - 1, x + DILATE);
+                for (int dy = Math.max(0, y - DILATE); dy <= yMax; dy++) {
+                    Arrays.fill(mask, dy * MAP_WIDTH + xMin, dy * MAP_WIDTH + xMax + 1, true);
                 }
             }
         }
 
-        byte[] fullDither = ditherPixels(pixels, quality);
+        byte[] result = acquireBuffer();
+        System.arraycopy(prevResult, 0, result, 0, MAP_SIZE);
 
-        for (int i = 0; i < MAP_SIZE; i++) {
-            if (!dilated[i]) {
-                fullDither[i] = prevResult[i];
+        try {
+            switch (quality) {
+                case FAST -> ditherOrderedRegion(pixels, off, stride, result, mask, x0, y0, x1, y1);
+                case BALANCED -> diffuseFloydSteinberg(pixels, off, stride, result, mask,
+                        Math.max(0, x0 - SEED_MARGIN), Math.max(0, y0 - SEED_MARGIN),
+                        Math.min(MAP_WIDTH - 1, x1 + SEED_MARGIN), y1, null);
+                case HIGH -> diffuseJarvis(pixels, off, stride, result, mask,
+                        Math.max(0, x0 - SEED_MARGIN), Math.max(0, y0 - SEED_MARGIN),
+                        Math.min(MAP_WIDTH - 1, x1 + SEED_MARGIN), y1, null);
+            }
+        } finally {
+            for (int y = y0; y <= y1; y++) {
+                Arrays.fill(mask, y * MAP_WIDTH + x0, y * MAP_WIDTH + x1 + 1, false);
             }
         }
 
-        return fullDither;
+        return result;
     }
 
     private static BufferedImage prepareImage(BufferedImage src, int width, int height) {
@@ -279,197 +498,375 @@ public final class EmageCore {
             {63, 31, 55, 23, 61, 29, 53, 21}
     };
 
-    private static byte[] ditherOrdered(int[] pixels) {
-        byte[] result = acquireBuffer();
+    // Bayer threshold scaled to +-12 and expanded to full rows, so a row can be added to the
+    // channel values as-is. (B / 64 - 0.5) * 24 == 3B / 8 - 12 exactly, and the channel is an
+    // integer, so the floored integer offset gives the same result as the float threshold.
+    static final int[][] ORDERED_OFFSETS = new int[8][MAP_WIDTH];
 
-        for (int i = 0; i < MAP_SIZE; i++) {
-            int rgb = pixels[i];
-            if (((rgb >> 24) & 0xFF) < 128) {
-                result[i] = 0;
-                continue;
+    static {
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < MAP_WIDTH; x++) {
+                ORDERED_OFFSETS[y][x] = ((BAYER_8X8[y][x & 7] * 3) >> 3) - 12;
             }
+        }
+    }
 
-            int x = i & 127;
-            int y = i >> 7;
-            float threshold = (BAYER_8X8[y & 7][x & 7] / 64.0f) - 0.5f;
-            float strength = 24.0f;
-
-            int r = clamp((int) (((rgb >> 16) & 0xFF) + threshold * strength));
-            int g = clamp((int) (((rgb >> 8) & 0xFF) + threshold * strength));
-            int b = clamp((int) ((rgb & 0xFF) + threshold * strength));
-
-            result[i] = matchColor(r, g, b);
+    private static byte[] ditherOrdered(int[] pixels, int off, int stride) {
+        byte[] result = acquireBuffer();
+        EmageColors.ColorTable table = EmageColors.getTable();
+
+        if (table == null) {
+            ditherOrderedUncached(pixels, off, stride, result);
+        } else if (simdDither) {
+            VectorDither.ditherOrdered(pixels, off, stride, result,
+                    table.data, table.bits, table.shift, ORDERED_OFFSETS);
+        } else {
+            ditherOrderedScalar(pixels, off, stride, result, table);
         }
 
         return result;
     }
 
-    private static byte[] ditherFloydSteinberg(int[] pixels) {
-        byte[] result = acquireBuffer();
+    private static void ditherOrderedScalar(int[] pixels, int off, int stride, byte[] result,
+                                            EmageColors.ColorTable table) {
+        byte[] cache = table.data;
+        int bits = table.bits;
+        int shift = table.shift;
 
-        double[] linR = getLinR();
-        double[] linG = getLinG();
-        double[] linB = getLinB();
-        boolean[] transparent = getTransparent();
+        for (int y = 0; y < MAP_WIDTH; y++) {
+            int[] offsets = ORDERED_OFFSETS[y & 7];
+            int rowOff = y * MAP_WIDTH;
+            int srcOff = off + y * stride;
 
-        java.util.Arrays.fill(linR, 0.0);
-        java.util.Arrays.fill(linG, 0.0);
-        java.util.Arrays.fill(linB, 0.0);
-        java.util.Arrays.fill(transparent, false);
+            for (int x = 0; x < MAP_WIDTH; x++) {
+                int i = rowOff + x;
+                int rgb = pixels[srcOff + x];
+                if ((rgb >>> 24) < 128) {
+                    result[i] = 0;
+                    continue;
+                }
 
+                int t = offsets[x];
+                int r = clamp(((rgb >> 16) & 0xFF) + t) >> shift;
+                int g = clamp(((rgb >> 8) & 0xFF) + t) >> shift;
+                int b = clamp((rgb & 0xFF) + t) >> shift;
+
+                result[i] = cache[(r << (bits * 2)) | (g << bits) | b];
+            }
+        }
+    }
+
+    private static void ditherOrderedUncached(int[] pixels, int off, int stride, byte[] result) {
         for (int i = 0; i < MAP_SIZE; i++) {
-            int rgb = pixels[i];
-            if (((rgb >> 24) & 0xFF) < 128) {
-                transparent[i] = true;
+            int rgb = pixels[off + (i >> 7) * stride + (i & 127)];
+            if ((rgb >>> 24) < 128) {
+                result[i] = 0;
                 continue;
             }
-            linR[i] = EmageColors.linearize((rgb >> 16) & 0xFF);
-            linG[i] = EmageColors.linearize((rgb >> 8) & 0xFF);
-            linB[i] = EmageColors.linearize(rgb & 0xFF);
+
+            int t = ORDERED_OFFSETS[(i >> 7) & 7][i & 127];
+            result[i] = matchColor(((rgb >> 16) & 0xFF) + t, ((rgb >> 8) & 0xFF) + t, (rgb & 0xFF) + t);
         }
+    }
 
-        for (int y = 0; y < MAP_WIDTH; y++) {
-            boolean leftToRight = (y % 2 == 0);
-            int startX = leftToRight ? 0 : MAP_WIDTH - 1;
-            int endX = leftToRight ? MAP_WIDTH : -1;
-            int stepX = leftToRight ? 1 : -1;
+    private static void ditherOrderedRegion(int[] pixels, int off, int stride, byte[] result, boolean[] mask,
+                                            int x0, int y0, int x1, int y1) {
+        EmageColors.ColorTable table = EmageColors.getTable();
 
-            for (int x = startX; x != endX; x += stepX) {
-                int idx = y * MAP_WIDTH + x;
+        for (int y = y0; y <= y1; y++) {
+            int[] offsets = ORDERED_OFFSETS[y & 7];
+            int rowOff = y * MAP_WIDTH;
+            int srcOff = off + y * stride;
 
-                if (transparent[idx]) {
-                    result[idx] = 0;
+            for (int x = x0; x <= x1; x++) {
+                int i = rowOff + x;
+                if (!mask[i]) continue;
+
+                int rgb = pixels[srcOff + x];
+                if ((rgb >>> 24) < 128) {
+                    result[i] = 0;
                     continue;
                 }
 
-                double clampedR = Math.max(0.0, Math.min(1.0, linR[idx]));
-                double clampedG = Math.max(0.0, Math.min(1.0, linG[idx]));
-                double clampedB = Math.max(0.0, Math.min(1.0, linB[idx]));
+                int t = offsets[x];
+                int r = ((rgb >> 16) & 0xFF) + t;
+                int g = ((rgb >> 8) & 0xFF) + t;
+                int b = (rgb & 0xFF) + t;
+                result[i] = table != null ? table.data[table.index(clamp(r), clamp(g), clamp(b))] : matchColor(r, g, b);
+            }
+        }
+    }
 
-                int sr = EmageColors.delinearize(clampedR);
-                int sg = EmageColors.delinearize(clampedG);
-                int sb = EmageColors.delinearize(clampedB);
+    private static final int ERR_PAD = 2;
+    private static final int DILATE = 2;
+    private static final int SEED_MARGIN = 4;
+    private static final int ERR_ROW = (MAP_WIDTH + ERR_PAD * 2) * 3;
+    private static final int ERR_ROWS = 3;
+
+    private static final float FS_7 = 7.0f / 16.0f;
+    private static final float FS_5 = 5.0f / 16.0f;
+    private static final float FS_3 = 3.0f / 16.0f;
+    private static final float FS_1 = 1.0f / 16.0f;
+
+    private static final float JJN_7 = 7.0f / 48.0f;
+    private static final float JJN_5 = 5.0f / 48.0f;
+    private static final float JJN_3 = 3.0f / 48.0f;
+    private static final float JJN_1 = 1.0f / 48.0f;
+
+    // Error is kept in linear light for the rows the kernel can reach only: a ring of
+    // ERR_ROWS rows, each padded by ERR_PAD pixels so the kernels never bounds-check.
+    private static byte[] ditherFloydSteinberg(int[] pixels, int off, int stride) {
+        byte[] result = acquireBuffer();
+        diffuseFloydSteinberg(pixels, off, stride, result, null, 0, 0, MAP_WIDTH - 1, MAP_WIDTH - 1, null);
+        return result;
+    }
+
+    // Diffuses over the box x0..x1, y0..y1. With a mask, pixels outside it keep the index
+    // already in result and only contribute their error. The box edges receive no error
+    // unless edges is given, which only applies to a whole tile.
+    private static void diffuseFloydSteinberg(int[] pixels, int off, int stride, byte[] result, boolean[] mask,
+                                              int x0, int y0, int x1, int y1, TileEdges edges) {
+        float[] err = getErrorRows();
+        Arrays.fill(err, 0.0f);
+
+        float[] lin = EmageColors.LINEAR_TABLE_F;
+        float[] pal = EmageColors.PALETTE_LINEAR_F;
+        int clearFrom = x0 * 3;
+        int clearTo = (x1 + ERR_PAD * 2 + 1) * 3;
+
+        if (edges != null) {
+            edges.loadTop(err, (y0 % ERR_ROWS) * ERR_ROW, ((y0 + 1) % ERR_ROWS) * ERR_ROW);
+        }
 
-                byte match = matchColor(sr, sg, sb);
-                result[idx] = match;
+        for (int y = y0; y <= y1; y++) {
+            int cur = (y % ERR_ROWS) * ERR_ROW;
+            int next = ((y + 1) % ERR_ROWS) * ERR_ROW;
+            // A serpentine row would push its first pixel's error into the left pad, where a
+            // neighbouring tile can no longer take it, so seamless tiles always run left to right
+            boolean leftToRight = edges != null || (y & 1) == 0;
+            int step = leftToRight ? 3 : -3;
+            int rowOff = y * MAP_WIDTH;
+            int srcOff = off + y * stride;
 
-                double[] palLin = EmageColors.getLinearRGB(match);
-                double eR = clampedR - palLin[0];
-                double eG = clampedG - palLin[1];
-                double eB = clampedB - palLin[2];
+            if (edges != null) edges.loadLeft(err, cur, y);
 
-                int nextX = x + stepX;
-                int prevX = x - stepX;
+            for (int i = x0; i <= x1; i++) {
+                int x = leftToRight ? i : x0 + x1 - i;
+                int idx = rowOff + x;
+                int rgb = pixels[srcOff + x];
 
-                if (nextX >= 0 && nextX < MAP_WIDTH) {
-                    int ni = idx + stepX;
-                    linR[ni] += eR * 7.0 / 16.0;
-                    linG[ni] += eG * 7.0 / 16.0;
-                    linB[ni] += eB * 7.0 / 16.0;
+                if (((rgb >> 24) & 0xFF) < 128) {
+                    result[idx] = 0;
+                    continue;
                 }
-                if (y + 1 < MAP_WIDTH) {
-                    int nextRow = (y + 1) * MAP_WIDTH;
-                    if (prevX >= 0 && prevX < MAP_WIDTH) {
-                        int ni = nextRow + prevX;
-                        linR[ni] += eR * 3.0 / 16.0;
-                        linG[ni] += eG * 3.0 / 16.0;
-                        linB[ni] += eB * 3.0 / 16.0;
-                    }
-                    {
-                        int ni = nextRow + x;
-                        linR[ni] += eR * 5.0 / 16.0;
-                        linG[ni] += eG * 5.0 / 16.0;
-                        linB[ni] += eB * 5.0 / 16.0;
-                    }
-                    if (nextX >= 0 && nextX < MAP_WIDTH) {
-                        int ni = nextRow + nextX;
-                        linR[ni] += eR * 1.0 / 16.0;
-                        linG[ni] += eG * 1.0 / 16.0;
-                        linB[ni] += eB * 1.0 / 16.0;
-                    }
+
+                int e = cur + (x + ERR_PAD) * 3;
+                float r = clampUnit(lin[(rgb >> 16) & 0xFF] + err[e]);
+                float g = clampUnit(lin[(rgb >> 8) & 0xFF] + err[e + 1]);
+                float b = clampUnit(lin[rgb & 0xFF] + err[e + 2]);
+
+                byte match;
+                if (mask == null || mask[idx]) {
+                    match = matchColor(EmageColors.delinearize(r),
+                            EmageColors.delinearize(g),
+                            EmageColors.delinearize(b));
+                    result[idx] = match;
+                } else {
+                    match = result[idx];
                 }
+
+                int p = (match & 0xFF) * 3;
+                float eR = r - pal[p];
+                float eG = g - pal[p + 1];
+                float eB = b - pal[p + 2];
+
+                int fwd = e + step;
+                err[fwd] += eR * FS_7;
+                err[fwd + 1] += eG * FS_7;
+                err[fwd + 2] += eB * FS_7;
+
+                int below = next + (x + ERR_PAD) * 3;
+                int back = below - step;
+                err[back] += eR * FS_3;
+                err[back + 1] += eG * FS_3;
+                err[back + 2] += eB * FS_3;
+                err[below] += eR * FS_5;
+                err[below + 1] += eG * FS_5;
+                err[below + 2] += eB * FS_5;
+                int ahead = below + step;
+                err[ahead] += eR * FS_1;
+                err[ahead + 1] += eG * FS_1;
+                err[ahead + 2] += eB * FS_1;
             }
+
+            if (edges != null) edges.storeRight(err, cur, y);
+            Arrays.fill(err, cur + clearFrom, cur + clearTo, 0.0f);
         }
 
-        return result;
+        if (edges != null) {
+            edges.storeBottom(err, ((y1 + 1) % ERR_ROWS) * ERR_ROW, ((y1 + 2) % ERR_ROWS) * ERR_ROW);
+        }
     }
 
-    private static byte[] ditherJarvisGammaCorrected(int[] pixels) {
+    private static byte[] ditherJarvisGammaCorrected(int[] pixels, int off, int stride) {
         byte[] result = acquireBuffer();
+        diffuseJarvis(pixels, off, stride, result, null, 0, 0, MAP_WIDTH - 1, MAP_WIDTH - 1, null);
+        return result;
+    }
 
-        double[] linR = getLinR();
-        double[] linG = getLinG();
-        double[] linB = getLinB();
-        boolean[] transparent = getTransparent();
+    private static void diffuseJarvis(int[] pixels, int off, int stride, byte[] result, boolean[] mask,
+                                      int x0, int y0, int x1, int y1, TileEdges edges) {
+        float[] err = getErrorRows();
+        Arrays.fill(err, 0.0f);
 
-        java.util.Arrays.fill(linR, 0.0);
-        java.util.Arrays.fill(linG, 0.0);
-        java.util.Arrays.fill(linB, 0.0);
-        java.util.Arrays.fill(transparent, false);
+        float[] lin = EmageColors.LINEAR_TABLE_F;
+        float[] pal = EmageColors.PALETTE_LINEAR_F;
+        int clearFrom = x0 * 3;
+        int clearTo = (x1 + ERR_PAD * 2 + 1) * 3;
 
-        for (int i = 0; i < MAP_SIZE; i++) {
-            int rgb = pixels[i];
-            if (((rgb >> 24) & 0xFF) < 128) {
-                transparent[i] = true;
-                continue;
-            }
-            linR[i] = EmageColors.linearize((rgb >> 16) & 0xFF);
-            linG[i] = EmageColors.linearize((rgb >> 8) & 0xFF);
-            linB[i] = EmageColors.linearize(rgb & 0xFF);
+        if (edges != null) {
+            edges.loadTop(err, (y0 % ERR_ROWS) * ERR_ROW, ((y0 + 1) % ERR_ROWS) * ERR_ROW);
         }
 
-        for (int y = 0; y < MAP_WIDTH; y++) {
-            for (int x = 0; x < MAP_WIDTH; x++) {
-                int idx = y * MAP_WIDTH + x;
+        for (int y = y0; y <= y1; y++) {
+            int cur = (y % ERR_ROWS) * ERR_ROW;
+            int next1 = ((y + 1) % ERR_ROWS) * ERR_ROW;
+            int next2 = ((y + 2) % ERR_ROWS) * ERR_ROW;
+            int rowOff = y * MAP_WIDTH;
+            int srcOff = off + y * stride;
+
+            if (edges != null) edges.loadLeft(err, cur, y);
 
-                if (transparent[idx]) {
+            for (int x = x0; x <= x1; x++) {
+                int idx = rowOff + x;
+                int rgb = pixels[srcOff + x];
+
+                if (((rgb >> 24) & 0xFF) < 128) {
                     result[idx] = 0;
                     continue;
                 }
 
-                double clampedR = Math.max(0.0, Math.min(1.0, linR[idx]));
-                double clampedG = Math.max(0.0, Math.min(1.0, linG[idx]));
-                double clampedB = Math.max(0.0, Math.min(1.0, linB[idx]));
+                int col = (x + ERR_PAD) * 3;
+                int e = cur + col;
+                float r = clampUnit(lin[(rgb >> 16) & 0xFF] + err[e]);
+                float g = clampUnit(lin[(rgb >> 8) & 0xFF] + err[e + 1]);
+                float b = clampUnit(lin[rgb & 0xFF] + err[e + 2]);
+
+                byte match;
+                if (mask == null || mask[idx]) {
+                    match = matchColor(EmageColors.delinearize(r),
+                            EmageColors.delinearize(g),
+                            EmageColors.delinearize(b));
+                    result[idx] = match;
+                } else {
+                    match = result[idx];
+                }
 
-                int sr = EmageColors.delinearize(clampedR);
-                int sg = EmageColors.delinearize(clampedG);
-                int sb = EmageColors.delinearize(clampedB);
+                int p = (match & 0xFF) * 3;
+                float eR = r - pal[p];
+                float eG = g - pal[p + 1];
+                float eB = b - pal[p + 2];
+
+                addError(err, e + 3, eR, eG, eB, JJN_7);
+                addError(err, e + 6, eR, eG, eB, JJN_5);
+
+                int n1 = next1 + col;
+                addError(err, n1 - 6, eR, eG, eB, JJN_3);
+                addError(err, n1 - 3, eR, eG, eB, JJN_5);
+                addError(err, n1, eR, eG, eB, JJN_7);
+                addError(err, n1 + 3, eR, eG, eB, JJN_5);
+                addError(err, n1 + 6, eR, eG, eB, JJN_3);
+
+                int n2 = next2 + col;
+                addError(err, n2 - 6, eR, eG, eB, JJN_1);
+                addError(err, n2 - 3, eR, eG, eB, JJN_3);
+                addError(err, n2, eR, eG, eB, JJN_5);
+                addError(err, n2 + 3, eR, eG, eB, JJN_3);
+                addError(err, n2 + 6, eR, eG, eB, JJN_1);
+            }
+
+            if (edges != null) edges.storeRight(err, cur, y);
+            Arrays.fill(err, cur + clearFrom, cur + clearTo, 0.0f);
+        }
+
+        if (edges != null) {
+            edges.storeBottom(err, ((y1 + 1) % ERR_ROWS) * ERR_ROW, ((y1 + 2) % ERR_ROWS) * ERR_ROW);
+        }
+    }
+
+    private static void addError(float[] err, int i, float eR, float eG, float eB, float weight) {
+        err[i] += eR * weight;
+        err[i + 1] += eG * weight;
+        err[i + 2] += eB * weight;
+    }
 
-                byte match = matchColor(sr, sg, sb);
-                result[idx] = match;
+    private static float clampUnit(float v) {
+        return v < 0.0f ? 0.0f : (v > 1.0f ? 1.0f : v);
+    }
 
-                double[] palLin = EmageColors.getLinearRGB(match);
-                double eR = clampedR - palLin[0];
-                double eG = clampedG - palLin[1];
-                double eB = clampedB - palLin[2];
+    // Error crossing tile borders in seamless mode. rows[gy] holds the two rows of error that
+    // flow into tile row gy, across the full canvas width plus ERR_PAD on each side, laid out
+    // like the ring rows. cols[gx] holds the two columns that flow into tile column gx, for
+    // every canvas row.
+    private static final class SeamCarry {
+        final int rowLen;
+        final float[][] rows;
+        final float[][] cols;
+
+        SeamCarry(int gridW, int gridH) {
+            rowLen = (gridW * MAP_WIDTH + ERR_PAD * 2) * 3;
+            rows = new float[gridH + 1][rowLen * 2];
+            cols = new float[gridW + 1][gridH * MAP_WIDTH * ERR_PAD * 3];
+        }
+    }
 
-                distributeError(linR, linG, linB, x + 1, y,     eR, eG, eB, 7.0 / 48.0);
-                distributeError(linR, linG, linB, x + 2, y,     eR, eG, eB, 5.0 / 48.0);
+    // One tile's view of the SeamCarry. Error pushed past the left edge is dropped, since that
+    // tile is already done; everything pushed right or down is handed on.
+    private static final class TileEdges {
+        private final SeamCarry carry;
+        private final int gx, gy;
+        private final int rowBase;
+
+        TileEdges(SeamCarry carry, int gx, int gy) {
+            this.carry = carry;
+            this.gx = gx;
+            this.gy = gy;
+            this.rowBase = gx * MAP_WIDTH * 3;
+        }
 
-                distributeError(linR, linG, linB, x - 2, y + 1, eR, eG, eB, 3.0 / 48.0);
-                distributeError(linR, linG, linB, x - 1, y + 1, eR, eG, eB, 5.0 / 48.0);
-                distributeError(linR, linG, linB, x,     y + 1, eR, eG, eB, 7.0 / 48.0);
-                distributeError(linR, linG, linB, x + 1, y + 1, eR, eG, eB, 5.0 / 48.0);
-                distributeError(linR, linG, linB, x + 2, y + 1, eR, eG, eB, 3.0 / 48.0);
+        void loadTop(float[] err, int slot0, int slot1) {
+            float[] top = carry.rows[gy];
+            int second = carry.rowLen + rowBase;
+            for (int k = ERR_PAD * 3; k < (MAP_WIDTH + ERR_PAD) * 3; k++) {
+                err[slot0 + k] += top[rowBase + k];
+                err[slot1 + k] += top[second + k];
+            }
+        }
 
-                distributeError(linR, linG, linB, x - 2, y + 2, eR, eG, eB, 1.0 / 48.0);
-                distributeError(linR, linG, linB, x - 1, y + 2, eR, eG, eB, 3.0 / 48.0);
-                distributeError(linR, linG, linB, x,     y + 2, eR, eG, eB, 5.0 / 48.0);
-                distributeError(linR, linG, linB, x + 1, y + 2, eR, eG, eB, 3.0 / 48.0);
-                distributeError(linR, linG, linB, x + 2, y + 2, eR, eG, eB, 1.0 / 48.0);
+        void storeBottom(float[] err, int slot0, int slot1) {
+            float[] bottom = carry.rows[gy + 1];
+            int second = carry.rowLen + rowBase;
+            for (int k = 0; k < ERR_ROW; k++) {
+                bottom[rowBase + k] += err[slot0 + k];
+                bottom[second + k] += err[slot1 + k];
             }
         }
 
-        return result;
-    }
+        void loadLeft(float[] err, int cur, int y) {
+            float[] left = carry.cols[gx];
+            int o = (gy * MAP_WIDTH + y) * ERR_PAD * 3;
+            for (int j = 0; j < ERR_PAD * 3; j++) {
+                err[cur + ERR_PAD * 3 + j] += left[o + j];
+            }
+        }
 
-    private static void distributeError(double[] linR, double[] linG, double[] linB,
-                                        int x, int y, double eR, double eG, double eB, double weight) {
-        if (x < 0 || x >= MAP_WIDTH || y < 0 || y >= MAP_WIDTH) return;
-        int idx = y * MAP_WIDTH + x;
-        linR[idx] += eR * weight;
-        linG[idx] += eG * weight;
-        linB[idx] += eB * weight;
+        void storeRight(float[] err, int cur, int y) {
+            float[] right = carry.cols[gx + 1];
+            int o = (gy * MAP_WIDTH + y) * ERR_PAD * 3;
+            for (int j = 0; j < ERR_PAD * 3; j++) {
+                right[o + j] += err[cur + (MAP_WIDTH + ERR_PAD) * 3 + j];
+            }
+        }
     }
 
     @FunctionalInterface
@@ -485,96 +882,214 @@ public final class EmageCore {
         return processGifGrid(url, gridW, gridH, maxFrames, quality, null);
     }
 
-    @SuppressWarnings("unchecked")
     public static GifGridData processGifGrid(URL url, int gridW, int gridH, int maxFrames, Quality quality, ProgressCallback progress) throws Exception {
-        int totalW = gridW * MAP_WIDTH;
-        int totalH = gridH * MAP_WIDTH;
+        try (InputStream is = new BufferedInputStream(openLimitedStream(url), 65536)) {
+            return processGifGrid(is, gridW, gridH, maxFrames, quality, progress);
+        }
+    }
 
-        GifData gifData = readGif(url, maxFrames);
-        if (gifData.frames.isEmpty()) {
-            throw new Exception("No frames found in GIF");
+    static GifGridData processGifGrid(InputStream is, int gridW, int gridH, int maxFrames, Quality quality, ProgressCallback progress) throws Exception {
+        GifGridAssembler assembler = new GifGridAssembler(gridW, gridH, quality, progress);
+        try {
+            readGif(is, maxFrames, assembler);
+            return assembler.finish();
+        } finally {
+            assembler.cancel();
         }
+    }
 
-        int frameCount = gifData.frames.size();
+    private interface FrameSink {
+        void begin(int expectedFrames);
 
-        List<byte[]>[][] grid = new List[gridW][gridH];
-        for (int gx = 0; gx < gridW; gx++) {
-            for (int gy = 0; gy < gridH; gy++) {
-                grid[gx][gy] = new ArrayList<>(frameCount);
+        void accept(BufferedImage frame, int delay) throws Exception;
+    }
+
+    // Frames arrive one at a time from the decoder. Each frame's chunks are dithered on
+    // EXECUTOR while the decoder composites the next one; accept() waits for the previous
+    // frame before submitting, so at most two composited frames are alive at once and the
+    // per-chunk stable dithering still sees frames in order.
+    //
+    // A frame identical to the previous one is folded into it by extending its delay, and a
+    // chunk that didn't change reuses the previous byte[] so the renderer can skip it.
+    private static final class GifGridAssembler implements FrameSink {
+        // Delays are stored as a signed 16-bit offset from the average, so merging stops here.
+        private static final int MAX_MERGED_DELAY = 30000;
+
+        private final int gridW;
+        private final int gridH;
+        private final Quality quality;
+        private final ProgressCallback progress;
+
+        private final List<byte[]>[][] grid;
+        private final byte[][][] prevChunkResults;
+        private final int planeW;
+        private final int planeH;
+
+        private Resampler resampler;
+        private int[] plane;
+        private int[] prevPlane;
+        private final List<Integer> delays = new ArrayList<>();
+
+        private List<Future<?>> pending = List.of();
+        private int[] previousFrame;
+        private int expectedFrames;
+        private int frameCount;
+        private int mergedFrames;
+
+        @SuppressWarnings("unchecked")
+        GifGridAssembler(int gridW, int gridH, Quality quality, ProgressCallback progress) {
+            this.gridW = gridW;
+            this.gridH = gridH;
+            this.quality = quality;
+            this.progress = progress;
+            this.grid = new List[gridW][gridH];
+            this.prevChunkResults = new byte[gridW][gridH][];
+            this.planeW = gridW * MAP_WIDTH;
+            this.planeH = gridH * MAP_WIDTH;
+
+            for (int gx = 0; gx < gridW; gx++) {
+                for (int gy = 0; gy < gridH; gy++) {
+                    grid[gx][gy] = new ArrayList<>();
+                }
             }
         }
 
-        int[] allPixels = new int[totalW * totalH];
+        @Override
+        public void begin(int expectedFrames) {
+            this.expectedFrames = expectedFrames;
+        }
 
-        int[][][] prevChunkPixels = new int[gridW][gridH][];
-        byte[][][] prevChunkResults = new byte[gridW][gridH][];
+        @Override
+        public void accept(BufferedImage frame, int delay) throws Exception {
+            int[] framePixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+            if (previousFrame != null && Arrays.equals(framePixels, previousFrame)) {
+                int last = delays.size() - 1;
+                int merged = delays.get(last) + delay;
+                if (merged <= MAX_MERGED_DELAY) {
+                    delays.set(last, merged);
+                    mergedFrames++;
+                    return;
+                }
+            }
+
+            awaitPending();
+
+            int frameIdx = frameCount++;
+            delays.add(delay);
+            previousFrame = framePixels;
 
-        for (int f = 0; f < frameCount; f++) {
-            BufferedImage frame = gifData.frames.get(f);
             int srcW = frame.getWidth();
             int srcH = frame.getHeight();
-
-            final int frameIdx = f;
+            boolean resize = srcW != planeW || srcH != planeH;
+
+            // The whole frame is scaled once to grid resolution, one band of tiles per task,
+            // and every chunk is dithered straight out of that plane. Two planes alternate so
+            // the previous frame stays readable for stable dithering; a frame that is already
+            // grid-sized is used as-is.
+            int[] prev = plane;
+            int[] cur;
+            if (resize) {
+                if (resampler == null) {
+                    resampler = new Resampler(srcW, srcH, planeW, planeH, resampleFilter);
+                }
+                cur = prevPlane != null && prevPlane != framePixels ? prevPlane : new int[planeW * planeH];
+            } else {
+                cur = framePixels;
+            }
+            prevPlane = prev;
+            plane = cur;
 
             List<Future<?>> tasks = new ArrayList<>(gridW * gridH);
             for (int gy = 0; gy < gridH; gy++) {
-                for (int gx = 0; gx < gridW; gx++) {
-                    final int cx = gx, cy = gy;
-
-                    final int srcX = cx * srcW / gridW;
-                    final int srcY = cy * srcH / gridH;
-                    final int srcChunkW = (cx + 1) * srcW / gridW - srcX;
-                    final int srcChunkH = (cy + 1) * srcH / gridH - srcY;
-
-                    tasks.add(EXECUTOR.submit(() -> {
-                        BufferedImage chunk;
-                        if (srcChunkW > 0 && srcChunkH > 0) {
-                            BufferedImage sub = frame.getSubimage(srcX, srcY, srcChunkW, srcChunkH);
-                            chunk = resize(sub, MAP_WIDTH, MAP_WIDTH);
-                        } else {
-                            chunk = new BufferedImage(MAP_WIDTH, MAP_WIDTH, BufferedImage.TYPE_INT_ARGB);
-                        }
+                final int cy = gy;
+                final int bandTop = gy * MAP_WIDTH;
 
-                        int[] chunkPx = new int[MAP_SIZE];
-                        chunk.getRGB(0, 0, MAP_WIDTH, MAP_WIDTH, chunkPx, 0, MAP_WIDTH);
+                CompletableFuture<Void> band = resize
+                        ? CompletableFuture.runAsync(() -> resampler.resampleRows(framePixels, 0, srcW,
+                                cur, 0, planeW, bandTop, bandTop + MAP_WIDTH), EXECUTOR)
+                        : CompletableFuture.completedFuture(null);
 
+                for (int gx = 0; gx < gridW; gx++) {
+                    final int cx = gx;
+                    final int off = bandTop * planeW + gx * MAP_WIDTH;
+
+                    tasks.add(band.thenRunAsync(() -> {
+                        byte[] prevResult = prevChunkResults[cx][cy];
                         byte[] dithered;
-                        if (frameIdx > 0 && prevChunkPixels[cx][cy] != null) {
-                            dithered = ditherPixelsStable(chunkPx, prevChunkPixels[cx][cy],
-                                    prevChunkResults[cx][cy], quality);
+                        if (prev != null && tileEquals(cur, prev, off, planeW)) {
+                            dithered = prevResult;
+                        } else if (prev != null) {
+                            dithered = ditherPixelsStable(cur, prev, off, planeW, prevResult, quality);
                         } else {
-                            dithered = ditherPixels(chunkPx, quality);
+                            dithered = ditherPixels(cur, off, planeW, quality);
                         }
 
-                        synchronized (grid[cx][cy]) {
-                            grid[cx][cy].add(dithered);
-                        }
-
-                        if (prevChunkPixels[cx][cy] == null) {
-                            prevChunkPixels[cx][cy] = new int[MAP_SIZE];
-                        }
-                        System.arraycopy(chunkPx, 0, prevChunkPixels[cx][cy], 0, MAP_SIZE);
+                        grid[cx][cy].add(dithered);
                         prevChunkResults[cx][cy] = dithered;
-                    }));
+                    }, EXECUTOR));
                 }
             }
+            pending = tasks;
 
-            for (Future<?> task : tasks) {
-                task.get();
+            if (progress != null && frameIdx % 10 == 0) {
+                reportProgress(frameIdx + 1);
             }
+        }
 
-            gifData.frames.set(f, null);
+        private static boolean tileEquals(int[] a, int[] b, int off, int stride) {
+            for (int y = 0; y < MAP_WIDTH; y++) {
+                int from = off + y * stride;
+                if (!Arrays.equals(a, from, from + MAP_WIDTH, b, from, from + MAP_WIDTH)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void awaitPending() throws Exception {
+            for (Future<?> task : pending) {
+                task.get();
+            }
+            pending = List.of();
+        }
 
-            if (progress != null && (f % 10 == 0 || f == frameCount - 1)) {
-                int pct = (int) ((f + 1) * 100.0 / frameCount);
-                progress.onProgress(f + 1, frameCount, "Dithering frame " + (f + 1) + "/" + frameCount + " (" + pct + "%)");
+        private void reportProgress(int current) {
+            if (expectedFrames <= 0) {
+                progress.onProgress(current, 0, "Dithering frame " + current);
+                return;
             }
+            int total = Math.max(current, expectedFrames);
+            int pct = (int) (current * 100.0 / total);
+            progress.onProgress(current, total, "Dithering frame " + current + "/" + total + " (" + pct + "%)");
         }
 
-        int avgDelay = gifData.delays.isEmpty() ? 100 :
-                (int) gifData.delays.stream().mapToInt(Integer::intValue).average().orElse(100);
+        GifGridData finish() throws Exception {
+            awaitPending();
+
+            if (frameCount == 0) {
+                throw new Exception("No frames found in GIF");
+            }
+
+            if (mergedFrames > 0) {
+                logger.fine("Merged " + mergedFrames + " duplicate GIF frame(s) into their predecessors");
+            }
+
+            if (progress != null) {
+                expectedFrames = frameCount;
+                reportProgress(frameCount);
+            }
 
-        return new GifGridData(grid, gifData.delays, avgDelay, gridW, gridH);
+            int avgDelay = delays.isEmpty() ? 100 :
+                    (int) delays.stream().mapToInt(Integer::intValue).average().orElse(100);
+
+            return new GifGridData(grid, delays, avgDelay, gridW, gridH);
+        }
+
+        void cancel() {
+            for (Future<?> task : pending) {
+                task.cancel(true);
+            }
+        }
     }
 
     private static InputStream openLimitedStream(URL url) throws IOException {
@@ -709,253 +1224,65 @@ public final class EmageCore {
         }
     }
 
-    private static GifData readGif(URL url, int maxFrames) throws Exception {
-        List<BufferedImage> frames = new ArrayList<>();
-        List<Integer> delays = new ArrayList<>();
-
+    private static void readGif(InputStream is, int maxFrames, FrameSink sink) throws Exception {
         long maxDecodedBytes = activeConfig != null
                 ? activeConfig.getMaxMemoryMB() * 1024 * 1024
                 : 256L * 1024 * 1024;
-        long totalDecodedBytes = 0;
-
-        try (InputStream is = new BufferedInputStream(openLimitedStream(url), 65536);
-             ImageInputStream iis = ImageIO.createImageInputStream(is)) {
-
-            ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
-            reader.setInput(iis, false, false);
-
-            int numFrames;
-            try {
-                numFrames = reader.getNumImages(true);
-            } catch (Exception e) {
-                numFrames = maxFrames;
-            }
-            numFrames = Math.min(numFrames, maxFrames);
 
-            int canvasWidth = 0;
-            int canvasHeight = 0;
-
-            try {
-                IIOMetadata streamMeta = reader.getStreamMetadata();
-                if (streamMeta != null) {
-                    IIOMetadataNode root = (IIOMetadataNode) streamMeta.getAsTree(
-                            streamMeta.getNativeMetadataFormatName());
-                    NodeList lsdNodes = root.getElementsByTagName("LogicalScreenDescriptor");
-                    if (lsdNodes.getLength() > 0) {
-                        IIOMetadataNode lsd = (IIOMetadataNode) lsdNodes.item(0);
-                        String w = lsd.getAttribute("logicalScreenWidth");
-                        String h = lsd.getAttribute("logicalScreenHeight");
-                        if (w != null && !w.isEmpty()) canvasWidth = Integer.parseInt(w);
-                        if (h != null && !h.isEmpty()) canvasHeight = Integer.parseInt(h);
-                    }
-                }
-            } catch (Exception e) {
-                logger.log(Level.FINE, "Could not read GIF logical screen descriptor", e);
-            }
+        // Frames are streamed, so peak usage is the canvas, an optional restore copy and
+        // two composited frames in flight rather than one copy per frame.
+        GifDecoder decoder = new GifDecoder(is, 4096, maxDecodedBytes / 4);
+        decoder.readHeader();
 
-            if (canvasWidth > 4096 || canvasHeight > 4096) {
-                reader.dispose();
-                throw new Exception("GIF dimensions too large: " + canvasWidth + "x" + canvasHeight +
-                        " (max 4096x4096)");
-            }
+        // The frame count isn't known without reading the whole stream.
+        sink.begin(0);
 
-            Color gifBackgroundColor = null;
+        int emitted = 0;
+        while (emitted < maxFrames) {
             try {
-                IIOMetadata streamMeta = reader.getStreamMetadata();
-                if (streamMeta != null) {
-                    IIOMetadataNode root = (IIOMetadataNode) streamMeta.getAsTree(
-                            streamMeta.getNativeMetadataFormatName());
-
-                    NodeList lsdNodes = root.getElementsByTagName("LogicalScreenDescriptor");
-                    int bgColorIndex = 0;
-                    if (lsdNodes.getLength() > 0) {
-                        IIOMetadataNode lsd = (IIOMetadataNode) lsdNodes.item(0);
-                        String bgIdx = lsd.getAttribute("backgroundColorIndex");
-                        if (bgIdx != null && !bgIdx.isEmpty()) {
-                            bgColorIndex = Integer.parseInt(bgIdx);
-                        }
-                    }
-
-                    NodeList gctNodes = root.getElementsByTagName("GlobalColorTable");
-                    if (gctNodes.getLength() > 0) {
-                        IIOMetadataNode gct = (IIOMetadataNode) gctNodes.item(0);
-                        NodeList entries = gct.getElementsByTagName("ColorTableEntry");
-                        for (int ei = 0; ei < entries.getLength(); ei++) {
-                            IIOMetadataNode entry = (IIOMetadataNode) entries.item(ei);
-                            String idxStr = entry.getAttribute("index");
-                            if (idxStr != null && Integer.parseInt(idxStr) == bgColorIndex) {
-                                int red = Integer.parseInt(entry.getAttribute("red"));
-                                int green = Integer.parseInt(entry.getAttribute("green"));
-                                int blue = Integer.parseInt(entry.getAttribute("blue"));
-                                gifBackgroundColor = new Color(red, green, blue, 255);
-                                break;
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                logger.log(Level.FINE, "Could not read GIF background color", e);
-            }
-
-            BufferedImage firstFrame = reader.read(0);
-            if (canvasWidth <= 0 || canvasHeight <= 0) {
-                canvasWidth = firstFrame.getWidth();
-                canvasHeight = firstFrame.getHeight();
-            }
-
-            long canvasBytes = (long) canvasWidth * canvasHeight * 4;
-            if (canvasBytes > maxDecodedBytes / 4) {
-                reader.dispose();
-                throw new Exception("GIF canvas too large: would require " +
-                        (canvasBytes / 1024 / 1024) + "MB per frame");
-            }
-
-            BufferedImage canvas = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D canvasG = canvas.createGraphics();
-            canvasG.setBackground(new Color(0, 0, 0, 0));
-            canvasG.clearRect(0, 0, canvasWidth, canvasHeight);
-
-            BufferedImage restoreCanvas = null;
-
-            final Color finalBgColor = gifBackgroundColor;
-
-            for (int i = 0; i < numFrames; i++) {
-                BufferedImage rawFrame;
-                try {
-                    rawFrame = (i == 0) ? firstFrame : reader.read(i);
-                } catch (Exception e) {
-                    logger.log(Level.FINE, "Failed to read GIF frame " + i, e);
-                    break;
-                }
-                if (rawFrame == null) break;
-
-                long frameBytes = (long) rawFrame.getWidth() * rawFrame.getHeight() * 4;
-                totalDecodedBytes += frameBytes + canvasBytes; // frame + canvas copy
-                if (totalDecodedBytes > maxDecodedBytes) {
-                    logger.warning("GIF exceeded decoded memory limit at frame " + i +
-                            " (" + (totalDecodedBytes / 1024 / 1024) + "MB). Truncating.");
-                    break;
-                }
-
-                int delay = 50;
-                String disposal = "none";
-                int frameX = 0, frameY = 0;
-                int frameW = rawFrame.getWidth();
-                int frameH = rawFrame.getHeight();
-
-                try {
-                    IIOMetadata meta = reader.getImageMetadata(i);
-                    if (meta != null) {
-                        IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(
-                                meta.getNativeMetadataFormatName());
-
-                        NodeList gceNodes = root.getElementsByTagName("GraphicControlExtension");
-                        if (gceNodes.getLength() > 0) {
-                            IIOMetadataNode gce = (IIOMetadataNode) gceNodes.item(0);
-                            String delayStr = gce.getAttribute("delayTime");
-                            if (delayStr != null && !delayStr.isEmpty()) {
-                                int d = Integer.parseInt(delayStr);
-                                delay = d <= 1 ? 50 : d * 10;
-                            }
-                            String disp = gce.getAttribute("disposalMethod");
-                            if (disp != null) disposal = disp;
-                        }
-
-                        NodeList descNodes = root.getElementsByTagName("ImageDescriptor");
-                        if (descNodes.getLength() > 0) {
-                            IIOMetadataNode desc = (IIOMetadataNode) descNodes.item(0);
-                            String x = desc.getAttribute("imageLeftPosition");
-                            String y = desc.getAttribute("imageTopPosition");
-                            if (x != null && !x.isEmpty()) frameX = Integer.parseInt(x);
-                            if (y != null && !y.isEmpty()) frameY = Integer.parseInt(y);
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.log(Level.FINE, "Failed to read metadata for GIF frame " + i, e);
-                }
-
-                if ("restoreToPrevious".equalsIgnoreCase(disposal)) {
-                    restoreCanvas = copyImage(canvas);
-                }
-
-                canvasG.drawImage(rawFrame, frameX, frameY, null);
-
-                frames.add(copyImage(canvas));
-                delays.add(Math.max(20, delay));
-
-                if ("restoreToBackgroundColor".equalsIgnoreCase(disposal)) {
-                    if (finalBgColor != null) {
-                        canvasG.setComposite(AlphaComposite.Src);
-                        canvasG.setColor(finalBgColor);
-                        canvasG.fillRect(frameX, frameY, frameW, frameH);
-                        canvasG.setComposite(AlphaComposite.SrcOver);
-                    } else {
-                        canvasG.setComposite(AlphaComposite.Clear);
-                        canvasG.fillRect(frameX, frameY, frameW, frameH);
-                        canvasG.setComposite(AlphaComposite.SrcOver);
-                    }
-                } else if ("restoreToPrevious".equalsIgnoreCase(disposal) && restoreCanvas != null) {
-                    canvasG.setComposite(AlphaComposite.Src);
-                    canvasG.drawImage(restoreCanvas, 0, 0, null);
-                    canvasG.setComposite(AlphaComposite.SrcOver);
-                }
+                if (!decoder.nextFrame()) break;
+            } catch (IOException e) {
+                if (emitted == 0) throw e;
+                logger.log(Level.FINE, "Failed to read GIF frame " + emitted, e);
+                break;
             }
 
-            canvasG.dispose();
-            reader.dispose();
+            sink.accept(toImage(decoder.getCanvas(), decoder.getWidth(), decoder.getHeight()),
+                    Math.max(20, decoder.getFrameDelay()));
+            emitted++;
         }
 
-        if (frames.isEmpty()) {
+        if (emitted == 0) {
             throw new Exception("No frames could be decoded from GIF");
         }
-
-        return new GifData(frames, delays);
     }
 
-    private static double[] getLinR() {
-        double[] arr = TL_LIN_R.get();
-        if (arr == null) {
-            arr = new double[MAP_SIZE];
-            TL_LIN_R.set(arr);
-        }
-        return arr;
-    }
-
-    private static double[] getLinG() {
-        double[] arr = TL_LIN_G.get();
-        if (arr == null) {
-            arr = new double[MAP_SIZE];
-            TL_LIN_G.set(arr);
-        }
-        return arr;
+    private static BufferedImage toImage(int[] argb, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(argb, 0, data, 0, argb.length);
+        return image;
     }
 
-    private static double[] getLinB() {
-        double[] arr = TL_LIN_B.get();
+    private static float[] getErrorRows() {
+        float[] arr = TL_ERROR_ROWS.get();
         if (arr == null) {
-            arr = new double[MAP_SIZE];
-            TL_LIN_B.set(arr);
+            arr = new float[ERR_ROW * ERR_ROWS];
+            TL_ERROR_ROWS.set(arr);
         }
         return arr;
     }
 
-    private static boolean[] getTransparent() {
-        boolean[] arr = TL_TRANSPARENT.get();
+    // Always all false between calls; ditherPixelsStable clears what it marked.
+    private static boolean[] getRegionMask() {
+        boolean[] arr = TL_REGION_MASK.get();
         if (arr == null) {
             arr = new boolean[MAP_SIZE];
-            TL_TRANSPARENT.set(arr);
+            TL_REGION_MASK.set(arr);
         }
         return arr;
     }
 
-    private static BufferedImage copyImage(BufferedImage src) {
-        BufferedImage copy = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = copy.createGraphics();
-        g.drawImage(src, 0, 0, null);
-        g.dispose();
-        return copy;
-    }
-
     public static byte[] compressMap(byte[] data) {
         return EmageCompression.compressSingleStatic(data);
     }
@@ -998,6 +1325,7 @@ public final class EmageCore {
     }
 
     public static void shutdown() {
+        TILE_EXECUTOR.shutdown();
         EXECUTOR.shutdown();
         try {
             if (!EXECUTOR.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -1008,10 +1336,7 @@ public final class EmageCore {
             Thread.currentThread().interrupt();
         }
 
-        TL_LIN_R.remove();
-        TL_LIN_G.remove();
-        TL_LIN_B.remove();
-        TL_TRANSPARENT.remove();
+        TL_ERROR_ROWS.remove();
 
         clearAllPools();
     }
@@ -1026,16 +1351,6 @@ public final class EmageCore {
         }
     }
 
-    private static class GifData {
-        final List<BufferedImage> frames;
-        final List<Integer> delays;
-
-        GifData(List<BufferedImage> frames, List<Integer> delays) {
-            this.frames = frames;
-            this.delays = delays;
-        }
-    }
-
     public static class AnimData {
         public final List<byte[]> frames;
         public final List<Integer> delays;
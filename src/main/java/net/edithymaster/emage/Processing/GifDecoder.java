@@ -0,0 +1,362 @@
+package net.edithymaster.emage.Processing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Reads a GIF straight off the stream and composites each frame into an ARGB canvas.
+// Only what the plugin needs is parsed (screen descriptor, color tables, graphic control
+// extension, image descriptor); every other extension is skipped block by block.
+final class GifDecoder {
+
+    private static final int MAX_CODES = 4096;
+    private static final int DEFAULT_DELAY_MS = 50;
+
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private static final int[] DEFAULT_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            DEFAULT_TABLE[i] = 0xFF000000 | (i << 16) | (i << 8) | i;
+        }
+    }
+
+    private final InputStream in;
+    private final int maxDimension;
+    private final long maxCanvasBytes;
+
+    private final byte[] block = new byte[256];
+    private final short[] prefix = new short[MAX_CODES];
+    private final byte[] suffix = new byte[MAX_CODES];
+    private final byte[] pixelStack = new byte[MAX_CODES + 1];
+
+    private int width;
+    private int height;
+    private int[] globalTable;
+    private int backgroundIndex;
+
+    private int[] canvas;
+    private int[] restore;
+
+    private int delay = DEFAULT_DELAY_MS;
+    private int frameDelay = DEFAULT_DELAY_MS;
+    private int disposal;
+    private int transparentIndex = -1;
+
+    private int lastDisposal;
+    private int lastX, lastY, lastW, lastH;
+
+    GifDecoder(InputStream in, int maxDimension, long maxCanvasBytes) {
+        this.in = in;
+        this.maxDimension = maxDimension;
+        this.maxCanvasBytes = maxCanvasBytes;
+    }
+
+    void readHeader() throws IOException {
+        readFully(block, 6);
+        if (block[0] != 'G' || block[1] != 'I' || block[2] != 'F') {
+            throw new IOException("Not a GIF file");
+        }
+
+        width = readShort();
+        height = readShort();
+        int packed = readByte();
+        backgroundIndex = readByte();
+        readByte();
+
+        if ((packed & 0x80) != 0) {
+            globalTable = readColorTable(2 << (packed & 7));
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int[] getCanvas() {
+        return canvas;
+    }
+
+    int getFrameDelay() {
+        return frameDelay;
+    }
+
+    // Advances to the next image and composites it onto the canvas. Returns false at the
+    // trailer or at a clean end of stream.
+    boolean nextFrame() throws IOException {
+        while (true) {
+            int code = in.read();
+            switch (code) {
+                case -1, 0x3B -> {
+                    return false;
+                }
+                case 0x21 -> readExtension();
+                case 0x2C -> {
+                    readImage();
+                    return true;
+                }
+                case 0x00 -> {}
+                default -> {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void readExtension() throws IOException {
+        int label = readByte();
+        if (label == 0xF9) {
+            int size = readBlock();
+            if (size >= 4) {
+                int packed = block[0] & 0xFF;
+                int d = (block[1] & 0xFF) | ((block[2] & 0xFF) << 8);
+                disposal = (packed >> 2) & 7;
+                transparentIndex = (packed & 1) != 0 ? block[3] & 0xFF : -1;
+                delay = d <= 1 ? DEFAULT_DELAY_MS : d * 10;
+            }
+        }
+        skipBlocks();
+    }
+
+    private void readImage() throws IOException {
+        int fx = readShort();
+        int fy = readShort();
+        int fw = readShort();
+        int fh = readShort();
+        int packed = readByte();
+
+        int[] table = (packed & 0x80) != 0 ? readColorTable(2 << (packed & 7)) : globalTable;
+        if (table == null) table = DEFAULT_TABLE;
+        boolean interlaced = (packed & 0x40) != 0;
+
+        if (canvas == null) {
+            allocateCanvas(fw, fh);
+        } else {
+            applyDisposal();
+        }
+
+        if (disposal == DISPOSE_PREVIOUS) {
+            if (restore == null) restore = new int[canvas.length];
+            System.arraycopy(canvas, 0, restore, 0, canvas.length);
+        }
+
+        decodeImageData(table, fx, fy, fw, fh, interlaced);
+
+        lastDisposal = disposal;
+        lastX = fx;
+        lastY = fy;
+        lastW = fw;
+        lastH = fh;
+
+        // A graphic control extension only applies to the image that follows it.
+        frameDelay = delay;
+        disposal = 0;
+        transparentIndex = -1;
+        delay = DEFAULT_DELAY_MS;
+    }
+
+    private void allocateCanvas(int frameW, int frameH) throws IOException {
+        if (width > maxDimension || height > maxDimension) {
+            throw new IOException("GIF dimensions too large: " + width + "x" + height +
+                    " (max " + maxDimension + "x" + maxDimension + ")");
+        }
+        if (width <= 0 || height <= 0) {
+            width = frameW;
+            height = frameH;
+        }
+
+        long canvasBytes = (long) width * height * 4;
+        if (width <= 0 || height <= 0 || canvasBytes > maxCanvasBytes) {
+            throw new IOException("GIF canvas too large: would require " +
+                    (canvasBytes / 1024 / 1024) + "MB per frame");
+        }
+
+        canvas = new int[width * height];
+    }
+
+    private void applyDisposal() {
+        if (lastDisposal == DISPOSE_BACKGROUND) {
+            int color = globalTable != null && backgroundIndex < globalTable.length
+                    ? globalTable[backgroundIndex] : 0;
+            int x0 = Math.max(0, lastX);
+            int x1 = Math.min(width, lastX + lastW);
+            int y1 = Math.min(height, lastY + lastH);
+            if (x1 <= x0) return;
+            for (int y = Math.max(0, lastY); y < y1; y++) {
+                Arrays.fill(canvas, y * width + x0, y * width + x1, color);
+            }
+        } else if (lastDisposal == DISPOSE_PREVIOUS && restore != null) {
+            System.arraycopy(restore, 0, canvas, 0, canvas.length);
+        }
+    }
+
+    // Variable-length LZW with deferred clear support. Pixels go straight onto the canvas as
+    // they come out, so a frame of any size needs no buffer: whatever lies outside the canvas
+    // is decoded and dropped, and a non-interlaced frame stops at the canvas bottom. A
+    // truncated stream leaves the rest of the frame untouched instead of failing it.
+    private void decodeImageData(int[] table, int fx, int fy, int fw, int fh, boolean interlaced) throws IOException {
+        int dataSize = readByte();
+        if (dataSize < 1 || dataSize > 11) {
+            throw new IOException("Invalid LZW code size: " + dataSize);
+        }
+
+        int clear = 1 << dataSize;
+        int endOfInfo = clear + 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+
+        int visibleW = Math.max(0, Math.min(fw, width - fx));
+        int visibleH = Math.max(0, Math.min(fh, height - fy));
+        int rows = fw > 0 && (interlaced || visibleH > 0) ? (interlaced ? fh : visibleH) : 0;
+
+        int datum = 0, bits = 0, count = 0, bi = 0;
+        int first = 0, top = 0;
+        int row = 0, col = 0, y = 0;
+        int pass = 0, step = interlaced ? 8 : 1;
+        int dst = visibleH > 0 ? fy * width + fx : -1;
+        boolean terminated = false;
+
+        while (row < rows) {
+            if (top == 0) {
+                if (bits < codeSize) {
+                    if (count == 0) {
+                        count = readBlock();
+                        if (count <= 0) {
+                            terminated = true;
+                            break;
+                        }
+                        bi = 0;
+                    }
+                    datum |= (block[bi++] & 0xFF) << bits;
+                    bits += 8;
+                    count--;
+                    continue;
+                }
+
+                int code = datum & codeMask;
+                datum >>>= codeSize;
+                bits -= codeSize;
+
+                if (code == clear) {
+                    codeSize = dataSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == endOfInfo || code > available) break;
+
+                if (oldCode == -1) {
+                    pixelStack[top++] = suffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+
+                int inCode = code;
+                if (code == available) {
+                    pixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code > clear) {
+                    pixelStack[top++] = suffix[code];
+                    code = prefix[code];
+                }
+                first = suffix[code] & 0xFF;
+                pixelStack[top++] = (byte) first;
+
+                if (available < MAX_CODES) {
+                    prefix[available] = (short) oldCode;
+                    suffix[available] = (byte) first;
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_CODES) {
+                        codeSize++;
+                        codeMask += available;
+                    }
+                }
+                oldCode = inCode;
+            }
+
+            int index = pixelStack[--top] & 0xFF;
+            if (dst >= 0 && col < visibleW && index != transparentIndex) {
+                canvas[dst + col] = index < table.length ? table[index] : 0xFF000000;
+            }
+
+            if (++col == fw) {
+                col = 0;
+                if (++row == rows) break;
+
+                y += step;
+                while (y >= fh) {
+                    pass++;
+                    y = pass == 1 ? 4 : (pass == 2 ? 2 : 1);
+                    step = pass == 1 ? 8 : (pass == 2 ? 4 : 2);
+                }
+                dst = y < visibleH ? (fy + y) * width + fx : -1;
+            }
+        }
+
+        if (!terminated) {
+            skipBlocks();
+        }
+    }
+
+    private int[] readColorTable(int entries) throws IOException {
+        byte[] raw = new byte[entries * 3];
+        readFully(raw, raw.length);
+
+        int[] table = new int[entries];
+        for (int i = 0, j = 0; i < entries; i++, j += 3) {
+            table[i] = 0xFF000000 | ((raw[j] & 0xFF) << 16) | ((raw[j + 1] & 0xFF) << 8) | (raw[j + 2] & 0xFF);
+        }
+        return table;
+    }
+
+    private int readBlock() throws IOException {
+        int size = readByte();
+        if (size > 0) {
+            readFully(block, size);
+        }
+        return size;
+    }
+
+    private void skipBlocks() throws IOException {
+        int size;
+        while ((size = readByte()) > 0) {
+            readFully(block, size);
+        }
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("Unexpected end of GIF data");
+        return b;
+    }
+
+    private void readFully(byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(buf, off, len - off);
+            if (n < 0) throw new EOFException("Unexpected end of GIF data");
+            off += n;
+        }
+    }
+}
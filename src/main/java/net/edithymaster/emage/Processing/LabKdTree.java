@@ -0,0 +1,116 @@
+package net.edithymaster.emage.Processing;
+
+final class LabKdTree {
+
+    private final double[][] points;
+    private final int[] nodes;
+    private final byte[] axes;
+
+    // Indexes points[from..to) of the palette; entries outside that range are never returned.
+    LabKdTree(double[][] points, int from, int to) {
+        this.points = points;
+        this.nodes = new int[to - from];
+        this.axes = new byte[to - from];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = from + i;
+        }
+        build(0, nodes.length);
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= 0) return;
+
+        int axis = widestAxis(lo, hi);
+        sortByAxis(lo, hi, axis);
+
+        int mid = (lo + hi) >>> 1;
+        axes[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(int lo, int hi) {
+        int best = 0;
+        double bestSpread = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = lo; i < hi; i++) {
+                double v = points[nodes[i]][axis];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                best = axis;
+            }
+        }
+        return best;
+    }
+
+    private void sortByAxis(int lo, int hi, int axis) {
+        for (int i = lo + 1; i < hi; i++) {
+            int node = nodes[i];
+            double v = points[node][axis];
+            int j = i - 1;
+            while (j >= lo && points[nodes[j]][axis] > v) {
+                nodes[j + 1] = nodes[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+        }
+    }
+
+    double nearestDistanceSq(double L, double a, double b) {
+        return nearest(0, nodes.length, L, a, b, Double.MAX_VALUE);
+    }
+
+    private double nearest(int lo, int hi, double L, double a, double b, double best) {
+        if (hi - lo <= 0) return best;
+
+        int mid = (lo + hi) >>> 1;
+        double[] p = points[nodes[mid]];
+        double dL = L - p[0];
+        double da = a - p[1];
+        double db = b - p[2];
+        double d = dL * dL + da * da + db * db;
+        if (d < best) best = d;
+
+        int axis = axes[mid];
+        double diff = axis == 0 ? dL : (axis == 1 ? da : db);
+
+        if (diff < 0) {
+            best = nearest(lo, mid, L, a, b, best);
+            if (diff * diff < best) best = nearest(mid + 1, hi, L, a, b, best);
+        } else {
+            best = nearest(mid + 1, hi, L, a, b, best);
+            if (diff * diff < best) best = nearest(lo, mid, L, a, b, best);
+        }
+        return best;
+    }
+
+    // Marks every palette index within sqrt(maxDistanceSq) in a 256-bit set, so callers can
+    // walk the matches in index order.
+    void withinDistanceSq(double L, double a, double b, double maxDistanceSq, long[] out) {
+        within(0, nodes.length, L, a, b, maxDistanceSq, out);
+    }
+
+    private void within(int lo, int hi, double L, double a, double b, double max, long[] out) {
+        if (hi - lo <= 0) return;
+
+        int mid = (lo + hi) >>> 1;
+        int index = nodes[mid];
+        double[] p = points[index];
+        double dL = L - p[0];
+        double da = a - p[1];
+        double db = b - p[2];
+        if (dL * dL + da * da + db * db <= max) {
+            out[index >>> 6] |= 1L << index;
+        }
+
+        int axis = axes[mid];
+        double diff = axis == 0 ? dL : (axis == 1 ? da : db);
+
+        if (diff < 0 || diff * diff <= max) within(lo, mid, L, a, b, max, out);
+        if (diff >= 0 || diff * diff <= max) within(mid + 1, hi, L, a, b, max, out);
+    }
+}
@@ -0,0 +1,175 @@
+package net.edithymaster.emage.Processing;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// LZ4 block format (no frame header or checksums; the callers store sizes themselves).
+// Greedy single-probe matcher: a fraction of deflate's CPU to decode, for somewhat larger
+// files. Map data is mostly runs and repeats, which is where LZ4 does best anyway.
+final class Lz4 {
+
+    private Lz4() {}
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> TL_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    static byte[] compress(byte[] src) {
+        int len = src.length;
+        byte[] dst = new byte[len + len / 255 + 16];
+        int d = 0;
+        int anchor = 0;
+
+        if (len > MF_LIMIT) {
+            // Entries are position + 1, so a cleared table means empty.
+            int[] table = TL_TABLE.get();
+            Arrays.fill(table, 0);
+
+            int limit = len - MF_LIMIT;
+            int matchLimit = len - LAST_LITERALS;
+            int i = 1;
+            table[hash(readInt(src, 0))] = 1;
+
+            while (i < limit) {
+                int seq = readInt(src, i);
+                int h = hash(seq);
+                int ref = table[h] - 1;
+                table[h] = i + 1;
+
+                if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    // Step faster through data that keeps missing.
+                    i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+
+                while (i > anchor && ref > 0 && src[i - 1] == src[ref - 1]) {
+                    i--;
+                    ref--;
+                }
+
+                int m = i + MIN_MATCH;
+                int r = ref + MIN_MATCH;
+                while (m < matchLimit && src[m] == src[r]) {
+                    m++;
+                    r++;
+                }
+
+                d = writeSequence(dst, d, src, anchor, i - anchor, i - ref, m - i - MIN_MATCH);
+                i = m;
+                anchor = m;
+
+                if (i - 2 < limit) {
+                    table[hash(readInt(src, i - 2))] = i - 1;
+                }
+            }
+        }
+
+        int literals = len - anchor;
+        dst[d++] = (byte) (Math.min(literals, 15) << 4);
+        d = writeLength(dst, d, literals);
+        System.arraycopy(src, anchor, dst, d, literals);
+        d += literals;
+
+        return Arrays.copyOf(dst, d);
+    }
+
+    static byte[] decompress(byte[] src, int off, int srcLen, int rawSize) throws IOException {
+        byte[] dst = new byte[rawSize];
+        int s = off;
+        int end = off + srcLen;
+        int d = 0;
+
+        while (s < end) {
+            int token = src[s++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (s >= end) throw corrupt();
+                    b = src[s++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - s || literals > rawSize - d) throw corrupt();
+            System.arraycopy(src, s, dst, d, literals);
+            s += literals;
+            d += literals;
+
+            if (s == end) break;
+
+            if (end - s < 2) throw corrupt();
+            int offset = (src[s] & 0xFF) | ((src[s + 1] & 0xFF) << 8);
+            s += 2;
+            if (offset == 0 || offset > d) throw corrupt();
+
+            int matchLen = token & 15;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (s >= end) throw corrupt();
+                    b = src[s++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            if (matchLen > rawSize - d) throw corrupt();
+
+            int from = d - offset;
+            if (offset >= matchLen) {
+                System.arraycopy(dst, from, dst, d, matchLen);
+            } else {
+                // Overlapping copy repeats the last `offset` bytes.
+                for (int k = 0; k < matchLen; k++) {
+                    dst[d + k] = dst[from + k];
+                }
+            }
+            d += matchLen;
+        }
+
+        if (d != rawSize) {
+            throw new IOException("LZ4 block decoded to " + d + " of " + rawSize + " bytes");
+        }
+        return dst;
+    }
+
+    private static int writeSequence(byte[] dst, int d, byte[] src, int anchor, int literals,
+                                     int offset, int matchExtra) {
+        dst[d++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchExtra, 15));
+        d = writeLength(dst, d, literals);
+        System.arraycopy(src, anchor, dst, d, literals);
+        d += literals;
+
+        dst[d++] = (byte) offset;
+        dst[d++] = (byte) (offset >>> 8);
+        return writeLength(dst, d, matchExtra);
+    }
+
+    private static int writeLength(byte[] dst, int d, int length) {
+        if (length < 15) return d;
+        length -= 15;
+        while (length >= 255) {
+            dst[d++] = (byte) 255;
+            length -= 255;
+        }
+        dst[d++] = (byte) length;
+        return d;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt LZ4 block");
+    }
+}
@@ -0,0 +1,263 @@
+package net.edithymaster.emage.Processing;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+// Separable resampler working on ARGB int arrays. Weight tables are computed once per
+// source/target size, so one instance can be reused for every frame of a GIF. Filtering
+// is done on premultiplied alpha, otherwise transparent pixels bleed black into edges.
+final class Resampler {
+
+    private static final ThreadLocal<float[]> TL_ROWS = new ThreadLocal<>();
+
+    private final int srcW, srcH, dstW, dstH;
+    private final Weights horizontal;
+    private final Weights vertical;
+
+    Resampler(int srcW, int srcH, int dstW, int dstH, EmageCore.ResampleFilter filter) {
+        this.srcW = srcW;
+        this.srcH = srcH;
+        this.dstW = dstW;
+        this.dstH = dstH;
+        this.horizontal = Weights.of(srcW, dstW, filter);
+        this.vertical = Weights.of(srcH, dstH, filter);
+    }
+
+    // Reads srcW x srcH pixels starting at srcOff with the given row stride, and writes
+    // dstW x dstH pixels the same way.
+    void resample(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride) {
+        run(src, srcOff, srcStride, null, dst, dstOff, dstStride, 0, dstH);
+    }
+
+    // Only output rows fromRow (inclusive) to toRow (exclusive). Bands are independent, so a
+    // frame can be split across threads; each band rebuilds the few rows it shares with
+    // the band above.
+    void resampleRows(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride,
+                      int fromRow, int toRow) {
+        run(src, srcOff, srcStride, null, dst, dstOff, dstStride, fromRow, toRow);
+    }
+
+    // Same, pulling source rows out of an image of any type one at a time, so a large
+    // download is never copied into an int[] as a whole.
+    void resample(BufferedImage src, int[] dst, int dstOff, int dstStride) {
+        run(new int[srcW], 0, 0, src, dst, dstOff, dstStride, 0, dstH);
+    }
+
+    // Only the vertical filter's taps worth of horizontally filtered rows are kept, in a
+    // ring indexed by source row; vertical.first never decreases, so rows are built once.
+    private void run(int[] src, int srcOff, int srcStride, BufferedImage image,
+                     int[] dst, int dstOff, int dstStride, int fromRow, int toRow) {
+        int vTaps = vertical.taps;
+        int rowLen = dstW * 4;
+        float[] buf = getBuffer(srcW * 4 + vTaps * rowLen);
+        int ringBase = srcW * 4;
+
+        int[] vFirst = vertical.first;
+        float[] vW = vertical.weights;
+        int nextRow = vFirst[fromRow];
+
+        for (int y = fromRow; y < toRow; y++) {
+            int first = vFirst[y];
+            for (; nextRow < first + vTaps; nextRow++) {
+                int s;
+                if (image != null) {
+                    image.getRGB(0, nextRow, srcW, 1, src, 0, srcW);
+                    s = 0;
+                } else {
+                    s = srcOff + nextRow * srcStride;
+                }
+                filterRow(src, s, buf, ringBase + (nextRow % vTaps) * rowLen);
+            }
+
+            int w = y * vTaps;
+            int d = dstOff + y * dstStride;
+            for (int x = 0; x < dstW; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int k = 0; k < vTaps; k++) {
+                    int t = ringBase + ((first + k) % vTaps) * rowLen + x * 4;
+                    float wt = vW[w + k];
+                    a += buf[t] * wt;
+                    r += buf[t + 1] * wt;
+                    g += buf[t + 2] * wt;
+                    b += buf[t + 3] * wt;
+                }
+
+                if (a <= 0.5f / 255.0f) {
+                    dst[d + x] = 0;
+                    continue;
+                }
+                float inv = 1.0f / a;
+                dst[d + x] = (channel(a * 255.0f) << 24)
+                        | (channel(r * inv) << 16)
+                        | (channel(g * inv) << 8)
+                        | channel(b * inv);
+            }
+        }
+    }
+
+    // Premultiplies one source row into the head of buf, then filters it horizontally into
+    // dstW samples at out.
+    private void filterRow(int[] src, int s, float[] buf, int out) {
+        for (int x = 0, p = 0; x < srcW; x++, p += 4) {
+            int argb = src[s + x];
+            float a = (argb >>> 24) * (1.0f / 255.0f);
+            buf[p] = a;
+            buf[p + 1] = ((argb >> 16) & 0xFF) * a;
+            buf[p + 2] = ((argb >> 8) & 0xFF) * a;
+            buf[p + 3] = (argb & 0xFF) * a;
+        }
+
+        int hTaps = horizontal.taps;
+        int[] hFirst = horizontal.first;
+        float[] hW = horizontal.weights;
+        for (int x = 0; x < dstW; x++, out += 4) {
+            float a = 0, r = 0, g = 0, b = 0;
+            int w = x * hTaps;
+            int p = hFirst[x] * 4;
+            for (int k = 0; k < hTaps; k++, p += 4) {
+                float wt = hW[w + k];
+                a += buf[p] * wt;
+                r += buf[p + 1] * wt;
+                g += buf[p + 2] * wt;
+                b += buf[p + 3] * wt;
+            }
+            buf[out] = a;
+            buf[out + 1] = r;
+            buf[out + 2] = g;
+            buf[out + 3] = b;
+        }
+    }
+
+    private static int channel(float v) {
+        int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    private static float[] getBuffer(int size) {
+        float[] arr = TL_ROWS.get();
+        if (arr == null || arr.length < size) {
+            arr = new float[size];
+            TL_ROWS.set(arr);
+        }
+        return arr;
+    }
+
+    // Every output sample reads the same number of taps starting at first[i]; samples near
+    // the edges are padded with zero weights so the inner loops never branch.
+    private static final class Weights {
+        final int taps;
+        final int[] first;
+        final float[] weights;
+
+        private Weights(int taps, int[] first, float[] weights) {
+            this.taps = taps;
+            this.first = first;
+            this.weights = weights;
+        }
+
+        static Weights of(int srcLen, int dstLen, EmageCore.ResampleFilter filter) {
+            if (srcLen == dstLen) {
+                int[] first = new int[dstLen];
+                float[] weights = new float[dstLen];
+                for (int i = 0; i < dstLen; i++) {
+                    first[i] = i;
+                    weights[i] = 1.0f;
+                }
+                return new Weights(1, first, weights);
+            }
+
+            double scale = (double) srcLen / dstLen;
+            if (filter == EmageCore.ResampleFilter.AREA && scale > 1.0) {
+                return area(srcLen, dstLen, scale);
+            }
+
+            // Upscaling with AREA is plain bilinear, as box coverage would just be nearest.
+            double support = switch (filter) {
+                case AREA -> 1.0;
+                case MITCHELL -> 2.0;
+                case LANCZOS -> 3.0;
+            };
+            double stretch = Math.max(1.0, scale);
+            double radius = support * stretch;
+            int taps = Math.min(srcLen, (int) Math.ceil(radius * 2) + 1);
+
+            int[] first = new int[dstLen];
+            float[] weights = new float[dstLen * taps];
+            double[] row = new double[srcLen];
+
+            for (int i = 0; i < dstLen; i++) {
+                double center = (i + 0.5) * scale - 0.5;
+                int lo = (int) Math.ceil(center - radius);
+                int hi = (int) Math.floor(center + radius);
+
+                int minIdx = srcLen, maxIdx = -1;
+                double sum = 0;
+                for (int j = lo; j <= hi; j++) {
+                    double w = kernel(filter, (j - center) / stretch);
+                    if (w == 0) continue;
+                    int idx = Math.max(0, Math.min(srcLen - 1, j));
+                    row[idx] += w;
+                    sum += w;
+                    if (idx < minIdx) minIdx = idx;
+                    if (idx > maxIdx) maxIdx = idx;
+                }
+                if (maxIdx < 0 || sum == 0) {
+                    minIdx = maxIdx = Math.max(0, Math.min(srcLen - 1, (int) Math.round(center)));
+                    row[minIdx] = sum = 1.0;
+                }
+
+                int start = Math.max(0, Math.min(minIdx, srcLen - taps));
+                first[i] = start;
+                for (int k = 0; k < taps; k++) {
+                    weights[i * taps + k] = (float) (row[start + k] / sum);
+                }
+                Arrays.fill(row, minIdx, maxIdx + 1, 0.0);
+            }
+            return new Weights(taps, first, weights);
+        }
+
+        // Each output sample averages exactly the source span it covers, with partial
+        // pixels at either end weighted by how much of them falls inside.
+        private static Weights area(int srcLen, int dstLen, double scale) {
+            int taps = Math.min(srcLen, (int) Math.ceil(scale) + 1);
+            int[] first = new int[dstLen];
+            float[] weights = new float[dstLen * taps];
+
+            for (int i = 0; i < dstLen; i++) {
+                double from = i * scale;
+                double to = Math.min(srcLen, (i + 1) * scale);
+                int start = Math.max(0, Math.min((int) from, srcLen - taps));
+                first[i] = start;
+                for (int k = 0; k < taps; k++) {
+                    int j = start + k;
+                    double overlap = Math.min(to, j + 1) - Math.max(from, j);
+                    if (overlap > 0) {
+                        weights[i * taps + k] = (float) (overlap / (to - from));
+                    }
+                }
+            }
+            return new Weights(taps, first, weights);
+        }
+
+        private static double kernel(EmageCore.ResampleFilter filter, double x) {
+            x = Math.abs(x);
+            switch (filter) {
+                case MITCHELL -> {
+                    // B = C = 1/3
+                    if (x < 1) return (7 * x * x * x - 12 * x * x + 16.0 / 3) / 6;
+                    if (x < 2) return (-7.0 / 3 * x * x * x + 12 * x * x - 20 * x + 32.0 / 3) / 6;
+                    return 0;
+                }
+                case LANCZOS -> {
+                    if (x == 0) return 1;
+                    if (x >= 3) return 0;
+                    double px = Math.PI * x;
+                    return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                }
+                default -> {
+                    return x < 1 ? 1 - x : 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package net.edithymaster.emage.Render;
+
+import net.edithymaster.emage.Processing.EmageCompression;
+import net.edithymaster.emage.Processing.EmageCore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Keeps animation frames in direct buffers instead of one byte[16384] per frame, so a wall
+// of long GIFs is not a pile of old-gen arrays the collector has to walk on every cycle.
+// Entries are indexed by sync group and map id; a renderer and the manager's cache share
+// the same Frames, and the buffer goes away with the last reference to it.
+public final class FrameStore {
+
+    private FrameStore() {}
+
+    private static final Logger logger = Logger.getLogger(FrameStore.class.getName());
+
+    // Grids loaded from disk drop their decoded frames after this long without a draw.
+    private static final long IDLE_RELEASE_MS = 60_000;
+
+    private static final Map<Long, Map<Integer, Frames>> GROUPS = new ConcurrentHashMap<>();
+    private static final Map<Long, LazyGrid> LAZY_GRIDS = new ConcurrentHashMap<>();
+    private static final AtomicLong offHeapBytes = new AtomicLong(0);
+
+    private static final ThreadLocal<byte[]> TL_FRAME = ThreadLocal.withInitial(() -> new byte[EmageCore.MAP_SIZE]);
+    private static final ThreadLocal<byte[]> TL_PREVIOUS = ThreadLocal.withInitial(() -> new byte[EmageCore.MAP_SIZE]);
+
+    private static volatile ExecutorService loader;
+
+    public static Frames put(long syncId, int mapId, List<byte[]> frameList) {
+        Frames frames = allocate(frameList);
+        register(syncId, mapId, frames);
+        return frames;
+    }
+
+    // Registers every cell of a lazily read animation file without decoding anything.
+    public static Map<Integer, Frames> putLazy(EmageCompression.AnimGridFile file) {
+        LazyGrid grid = new LazyGrid(file);
+        LazyGrid old = LAZY_GRIDS.put(file.syncId, grid);
+        if (old != null) {
+            old.release();
+        }
+
+        Map<Integer, Frames> cells = new HashMap<>();
+        for (int c = 0; c < file.mapIds.size(); c++) {
+            Frames frames = new LazyFrames(grid, c);
+            register(file.syncId, file.mapIds.get(c), frames);
+            cells.put(file.mapIds.get(c), frames);
+        }
+        return cells;
+    }
+
+    private static void register(long syncId, int mapId, Frames frames) {
+        Frames old = GROUPS.computeIfAbsent(syncId, k -> new ConcurrentHashMap<>()).put(mapId, frames);
+        offHeapBytes.addAndGet(frames.bytes());
+        if (old != null) {
+            offHeapBytes.addAndGet(-old.bytes());
+        }
+    }
+
+    public static Frames get(long syncId, int mapId) {
+        Map<Integer, Frames> group = GROUPS.get(syncId);
+        return group != null ? group.get(mapId) : null;
+    }
+
+    public static void remove(long syncId, int mapId) {
+        Map<Integer, Frames> group = GROUPS.get(syncId);
+        if (group == null) return;
+
+        Frames old = group.remove(mapId);
+        if (old != null) {
+            offHeapBytes.addAndGet(-old.bytes());
+        }
+        if (group.isEmpty()) {
+            GROUPS.remove(syncId, group);
+            LazyGrid grid = LAZY_GRIDS.remove(syncId);
+            if (grid != null) {
+                grid.release();
+            }
+        }
+    }
+
+    // Called periodically; frees decoded frames of file-backed grids nobody has drawn lately.
+    public static void releaseIdle(long now) {
+        for (LazyGrid grid : LAZY_GRIDS.values()) {
+            if (now - grid.lastUsed > IDLE_RELEASE_MS) {
+                grid.release();
+            }
+        }
+    }
+
+    public static void clear() {
+        GROUPS.clear();
+        LAZY_GRIDS.clear();
+        offHeapBytes.set(0);
+
+        ExecutorService current = loader;
+        loader = null;
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+
+    public static long getOffHeapBytes() {
+        return offHeapBytes.get();
+    }
+
+    // Groups are independent, so misses on different grids (or a miss and a prefetch)
+    // decode side by side.
+    private static synchronized ExecutorService loader() {
+        if (loader == null) {
+            AtomicInteger counter = new AtomicInteger();
+            loader = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "Emage-FrameLoader-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        }
+        return loader;
+    }
+
+    // Unregistered frames, for renderers built straight from a list.
+    static Frames allocate(List<byte[]> frameList) {
+        int count = frameList.size();
+        int[] slots = new int[count];
+        List<byte[]> unique = new ArrayList<>();
+        Map<byte[], Integer> seen = new IdentityHashMap<>();
+
+        // Merged frames arrive as the same array; a frame equal to the one before it
+        // (decoded from disk, say) is folded as well.
+        for (int i = 0; i < count; i++) {
+            byte[] data = frameList.get(i);
+            if (data == null || data.length < EmageCore.MAP_SIZE) {
+                slots[i] = -1;
+                continue;
+            }
+
+            Integer slot = seen.get(data);
+            if (slot == null) {
+                int last = unique.size() - 1;
+                if (last >= 0 && Arrays.equals(unique.get(last), 0, EmageCore.MAP_SIZE, data, 0, EmageCore.MAP_SIZE)) {
+                    slot = last;
+                } else {
+                    slot = unique.size();
+                    unique.add(data);
+                }
+                seen.put(data, slot);
+            }
+            slots[i] = slot;
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(unique.size() * EmageCore.MAP_SIZE);
+        for (int i = 0; i < unique.size(); i++) {
+            slab.put(i * EmageCore.MAP_SIZE, unique.get(i), 0, EmageCore.MAP_SIZE);
+        }
+
+        return new SlabFrames(slab, slots);
+    }
+
+    static byte[] scratch() {
+        return TL_FRAME.get();
+    }
+
+    // A second buffer, for comparing a frame against the one before it.
+    static byte[] previousScratch() {
+        return TL_PREVIOUS.get();
+    }
+
+    public abstract static class Frames {
+
+        public abstract int size();
+
+        // Frames sharing a slot hold identical pixels; -1 marks a frame with no data.
+        public abstract int slot(int frame);
+
+        // Copies the frame if it is at hand. File-backed frames may still be decoding, in
+        // which case this returns false and the renderer is marked dirty once they are in.
+        public abstract boolean copy(int frame, byte[] dst);
+
+        // Blocking read, decoding on the calling thread if needed.
+        public abstract byte[] get(int frame);
+
+        // Whether copy would succeed right now; file-backed frames that are not in yet are
+        // requested in the background.
+        public boolean isLoaded(int frame) {
+            return slot(frame) >= 0;
+        }
+
+        // Rebuilds the list, keeping duplicate frames as the same array.
+        public List<byte[]> toList() {
+            int count = size();
+            List<byte[]> list = new ArrayList<>(count);
+            Map<Integer, byte[]> bySlot = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int slot = slot(i);
+                list.add(slot < 0 ? null : bySlot.computeIfAbsent(slot, this::get));
+            }
+            return list;
+        }
+
+        abstract long bytes();
+    }
+
+    private static final class SlabFrames extends Frames {
+        private final ByteBuffer slab;
+        private final int[] slots;
+
+        SlabFrames(ByteBuffer slab, int[] slots) {
+            this.slab = slab;
+            this.slots = slots;
+        }
+
+        @Override
+        public int size() {
+            return slots.length;
+        }
+
+        @Override
+        public int slot(int frame) {
+            return slots[frame];
+        }
+
+        @Override
+        public boolean copy(int frame, byte[] dst) {
+            int slot = slots[frame];
+            if (slot < 0) return false;
+            slab.get(slot * EmageCore.MAP_SIZE, dst, 0, EmageCore.MAP_SIZE);
+            return true;
+        }
+
+        @Override
+        public byte[] get(int frame) {
+            byte[] data = new byte[EmageCore.MAP_SIZE];
+            return copy(frame, data) ? data : null;
+        }
+
+        @Override
+        long bytes() {
+            return slab.capacity();
+        }
+    }
+
+    private static final class LazyFrames extends Frames {
+        private final LazyGrid grid;
+        private final int cell;
+        private final int[] slots;
+
+        LazyFrames(LazyGrid grid, int cell) {
+            this.grid = grid;
+            this.cell = cell;
+
+            // A repeated frame points at the first frame of its run, which may sit in an
+            // earlier group; that is the one that gets read.
+            EmageCompression.AnimGridFile file = grid.file;
+            this.slots = new int[file.frameCount];
+            for (int f = 0; f < slots.length; f++) {
+                slots[f] = file.repeatsPrevious(cell, f) ? slots[f - 1] : f;
+            }
+        }
+
+        @Override
+        public int size() {
+            return slots.length;
+        }
+
+        @Override
+        public int slot(int frame) {
+            return slots[frame];
+        }
+
+        @Override
+        public boolean copy(int frame, byte[] dst) {
+            return grid.copy(cell, slots[frame], dst, false);
+        }
+
+        @Override
+        public byte[] get(int frame) {
+            byte[] data = new byte[EmageCore.MAP_SIZE];
+            return grid.copy(cell, slots[frame], data, true) ? data : null;
+        }
+
+        @Override
+        public boolean isLoaded(int frame) {
+            return grid.isLoaded(slots[frame]);
+        }
+
+        @Override
+        long bytes() {
+            return 0;
+        }
+    }
+
+    // Decoded groups of a lazily read file, shared by all its cells. Each group is one direct
+    // buffer laid out as [cell][frame in group].
+    private static final class LazyGrid {
+        final EmageCompression.AnimGridFile file;
+        final AtomicReferenceArray<ByteBuffer> groups;
+        final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+        // Groups that failed to decode; the file will not get any better, so they are not
+        // tried again.
+        final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+        volatile long lastUsed;
+
+        LazyGrid(EmageCompression.AnimGridFile file) {
+            this.file = file;
+            this.groups = new AtomicReferenceArray<>(file.getGroupCount());
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        boolean copy(int cell, int frame, byte[] dst, boolean block) {
+            lastUsed = System.currentTimeMillis();
+
+            int group = frame / file.groupSize;
+            ByteBuffer data = groups.get(group);
+            if (data == null) {
+                if (block) {
+                    data = load(group);
+                }
+                if (data == null) {
+                    request(group);
+                    return false;
+                }
+            }
+
+            int index = cell * file.groupSize + frame % file.groupSize;
+            data.get(index * EmageCore.MAP_SIZE, dst, 0, EmageCore.MAP_SIZE);
+
+            // Playback is about to need the next group; have it ready.
+            if (group + 1 < groups.length() && groups.get(group + 1) == null) {
+                request(group + 1);
+            }
+            return true;
+        }
+
+        boolean isLoaded(int frame) {
+            int group = frame / file.groupSize;
+            if (groups.get(group) != null) return true;
+            request(group);
+            return false;
+        }
+
+        private void request(int group) {
+            if (failed.contains(group) || !pending.add(group)) return;
+            try {
+                loader().execute(() -> {
+                    try {
+                        if (load(group) != null) {
+                            GifRenderer.markDirty(file.syncId);
+                        }
+                    } finally {
+                        pending.remove(group);
+                    }
+                });
+            } catch (RuntimeException e) {
+                pending.remove(group);
+            }
+        }
+
+        private ByteBuffer load(int group) {
+            ByteBuffer existing = groups.get(group);
+            if (existing != null) return existing;
+            if (failed.contains(group)) return null;
+
+            byte[][][] decoded;
+            try {
+                decoded = file.decodeGroup(group);
+            } catch (IOException | RuntimeException e) {
+                if (failed.add(group)) {
+                    logger.log(Level.WARNING, "Failed to decode frames " + group * file.groupSize +
+                            "+ of animation " + file.syncId, e);
+                }
+                return null;
+            }
+
+            ByteBuffer data = ByteBuffer.allocateDirect(decoded.length * file.groupSize * EmageCore.MAP_SIZE);
+            for (int c = 0; c < decoded.length; c++) {
+                for (int f = 0; f < decoded[c].length; f++) {
+                    data.put((c * file.groupSize + f) * EmageCore.MAP_SIZE, decoded[c][f], 0, EmageCore.MAP_SIZE);
+                }
+            }
+
+            if (!groups.compareAndSet(group, null, data)) {
+                return groups.get(group);
+            }
+            offHeapBytes.addAndGet(data.capacity());
+            return data;
+        }
+
+        void release() {
+            for (int g = 0; g < groups.length(); g++) {
+                ByteBuffer data = groups.getAndSet(g, null);
+                if (data != null) {
+                    offHeapBytes.addAndGet(-data.capacity());
+                }
+            }
+        }
+    }
+}
@@ -8,18 +8,33 @@ import org.bukkit.map.MapCanvas;
 import org.bukkit.map.MapRenderer;
 import org.bukkit.map.MapView;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.util.Vector;
 import net.edithymaster.emage.Config.EmageConfig;
-import net.edithymaster.emage.Processing.EmageCore;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public final class GifRenderer extends MapRenderer {
 
+    private static final Logger logger = Logger.getLogger(GifRenderer.class.getName());
+
     private static final Map<Long, SyncGroup> SYNC_GROUPS = new ConcurrentHashMap<>();
     private static final Map<Integer, GifRenderer> RENDERERS = new ConcurrentHashMap<>();
-    private static final Map<Integer, Location> MAP_LOCATIONS = new ConcurrentHashMap<>();
+    private static final Map<UUID, Viewer> VIEWERS = new ConcurrentHashMap<>();
+
+    // Frame advancement, culling and deciding who gets which map run on the animator
+    // thread. The main thread only snapshots player positions and makes the planned
+    // sendMap calls, since those render through the map canvas.
+    private static volatile ScheduledExecutorService animator;
+    private static volatile List<PlayerState> playerStates = Collections.emptyList();
+    private static final AtomicReference<List<Send>> PENDING = new AtomicReference<>();
 
     private static volatile boolean running = false;
     private static JavaPlugin plugin;
@@ -28,15 +43,27 @@ public final class GifRenderer extends MapRenderer {
     private static final AtomicInteger ID_COUNTER = new AtomicInteger(0);
 
     private static final int DEFAULT_RENDER_DISTANCE_SQ = 64 * 64;
+    private static final long RELEASE_SWEEP_MS = 5000;
+    private static final long ANIMATOR_PERIOD_MS = 5;
+
+    // Dirty rectangles are packed as x0 | y0 << 8 | x1 << 16 | y1 << 24, ends exclusive.
+    private static final int RECT_UNKNOWN = -1;
+    private static final int RECT_EMPTY = 0;
+    private static final int RECT_FULL = 128 << 16 | 128 << 24;
+    private static final int MAX_PATCH_PIXELS = 16384 / 8;
 
     private final int id;
     private final long syncId;
-    private final byte[][] frames;
+    private final FrameStore.Frames frames;
     private final int frameCount;
+    // Area that changes going from the frame before into each frame, filled in the first
+    // time that transition is drawn. When only a scattered few pixels change, their
+    // indices are kept as well and just those are written.
+    private final int[] dirtyRects;
+    private final short[][] patches;
 
     private volatile MapView mapView;
     private volatile int lastRenderedFrame = -1;
-    private volatile boolean needsRender = true;
     private static long lastTickTime = 0;
 
     private static class SyncGroup {
@@ -97,8 +124,7 @@ public final class GifRenderer extends MapRenderer {
 
             if (targetFrame != currentFrame) {
                 currentFrame = targetFrame;
-                markAllDirty();
-                return true;
+                return markChanged(targetFrame);
             }
 
             return false;
@@ -118,10 +144,21 @@ public final class GifRenderer extends MapRenderer {
             return lo;
         }
 
+        // Who needs what is worked out per player from what they were last sent; this only
+        // asks for a new plan.
         void markAllDirty() {
+            planDue = true;
+        }
+
+        // Cells whose next frame is stored in the same slot they last drew (merged duplicate
+        // frames) are left alone, so no packet goes out for them.
+        boolean markChanged(int frame) {
             for (GifRenderer renderer : renderers) {
-                renderer.needsRender = true;
+                if (renderer.changesAt(frame)) {
+                    return true;
+                }
             }
+            return false;
         }
 
         int getCurrentFrame() {
@@ -136,24 +173,93 @@ public final class GifRenderer extends MapRenderer {
         if (running) return;
         running = true;
 
-        Bukkit.getScheduler().runTaskTimer(plugin, GifRenderer::tick, 1L, 2L);
+        Bukkit.getScheduler().runTaskTimer(plugin, GifRenderer::mainTick, 1L, 1L);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Emage-Animator");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(GifRenderer::tick, ANIMATOR_PERIOD_MS, ANIMATOR_PERIOD_MS, TimeUnit.MILLISECONDS);
+        animator = executor;
     }
 
     public static void stop() {
         running = false;
+
+        ScheduledExecutorService executor = animator;
+        animator = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+
+        PENDING.set(null);
+        playerStates = Collections.emptyList();
         SYNC_GROUPS.clear();
         RENDERERS.clear();
-        MAP_LOCATIONS.clear();
+        MapIndex.clear();
+        VIEWERS.clear();
+        FrameStore.clear();
     }
 
     private static long lastTickTIme = 0;
     private static int tickCounter = 0;
+    private static long lastReleaseSweep = 0;
+    private static volatile boolean planDue = false;
+    private static UUID nextFirst = null;
+
+    // Main thread: hands the animator fresh player positions and sends what it planned.
+    private static void mainTick() {
+        if (!running) return;
+
+        List<Send> plan = PENDING.getAndSet(null);
+        if (plan != null) {
+            for (int i = 0, size = plan.size(); i < size; i++) {
+                Send send = plan.get(i);
+                if (!send.player.isOnline()) continue;
+                try {
+                    send.player.sendMap(send.renderer.mapView);
+                    send.viewer.seen.put(send.renderer.id, send.renderer.slotAt(send.renderer.lastRenderedFrame));
+                } catch (Exception ignored) {}
+            }
+        }
+
+        if (SYNC_GROUPS.isEmpty()) {
+            playerStates = Collections.emptyList();
+            return;
+        }
+
+        Collection<? extends Player> players = Bukkit.getOnlinePlayers();
+        List<PlayerState> states = new ArrayList<>(players.size());
+        for (Player player : players) {
+            if (player.isOnline()) {
+                states.add(new PlayerState(player));
+            }
+        }
+        playerStates = states;
+    }
 
     private static void tick() {
+        try {
+            animate();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Animation tick failed", e);
+        }
+    }
+
+    private static void animate() {
         if (!running || SYNC_GROUPS.isEmpty()) return;
-        if (Bukkit.getOnlinePlayers().isEmpty()) return;
 
         long now = System.currentTimeMillis();
+        List<PlayerState> players = playerStates;
+
+        if (now - lastReleaseSweep >= RELEASE_SWEEP_MS) {
+            lastReleaseSweep = now;
+            FrameStore.releaseIdle(now);
+            pruneViewers(players);
+        }
+
+        if (players.isEmpty()) return;
 
         int fps = config != null ? config.getAnimationFps() : 30;
         long minFrameInterval = 1000L / Math.max(1, fps);
@@ -173,15 +279,20 @@ public final class GifRenderer extends MapRenderer {
         }
         tickCounter = 0;
 
-        boolean anyChanged = false;
         for (SyncGroup group : SYNC_GROUPS.values()) {
             if (group.tick(now)) {
-                anyChanged = true;
+                planDue = true;
             }
         }
 
-        if (anyChanged) {
-            sendMapUpdates();
+        // While the main thread has not picked up the last plan, renderers stay dirty and
+        // go out with the next one.
+        if (planDue && PENDING.get() == null) {
+            planDue = false;
+            List<Send> plan = planMapUpdates(players);
+            if (!plan.isEmpty()) {
+                PENDING.set(plan);
+            }
         }
     }
 
@@ -196,67 +307,259 @@ public final class GifRenderer extends MapRenderer {
                 }
             }
         }
-        MAP_LOCATIONS.remove(mapId);
+        MapIndex.remove(mapId);
     }
 
-    private static void sendMapUpdates() {
-        Collection<? extends Player> players = Bukkit.getOnlinePlayers();
-        if (players.isEmpty()) return;
+    // Every player gets a queue of the maps in range that they are behind on, best first.
+    // The global budget is then shared out by deficit round-robin: each round, every player
+    // with work earns a quantum of sends and spends what it can, and the next plan starts
+    // with the player the budget ran out on. Nothing is dropped: a map that is not sent
+    // is still behind for that player, so it is queued again, and counts as missed.
+    private static List<Send> planMapUpdates(List<PlayerState> players) {
+        List<Send> plan = new ArrayList<>();
 
-        List<GifRenderer> dirtyRenderers = new ArrayList<>();
+        int renderDistSq = config != null ? config.getRenderDistanceSquared() : DEFAULT_RENDER_DISTANCE_SQ;
+        double renderDist = Math.sqrt(renderDistSq);
+        int perPlayerBudget = config != null ? config.getMaxPacketsPerTick() : 32;
+        int globalBudget = perPlayerBudget * 2;
+
+        // Maps with a known position are found per player through the index; the few
+        // without one go to everybody.
+        List<GifRenderer> unplaced = new ArrayList<>();
         for (GifRenderer renderer : RENDERERS.values()) {
-            if (renderer.needsRender && renderer.mapView != null) {
-                dirtyRenderers.add(renderer);
+            if (renderer.mapView != null && MapIndex.get(renderer.mapId()) == null) {
+                unplaced.add(renderer);
             }
         }
 
-        if (dirtyRenderers.isEmpty()) return;
+        List<PlayerQueue> queues = new ArrayList<>();
+        for (PlayerState player : players) {
+            Viewer viewer = viewerOf(player);
+            List<Candidate> candidates = new ArrayList<>();
 
-        int renderDistSq = config != null ? config.getRenderDistanceSquared() : DEFAULT_RENDER_DISTANCE_SQ;
-        int perPlayerBudget = config != null ? config.getMaxPacketsPerTick() : 32;
+            MapIndex.forEachNear(player.world, player.x, player.z, renderDist, mapId -> {
+                GifRenderer renderer = RENDERERS.get(mapId);
+                if (renderer == null || renderer.mapView == null || !renderer.isBehind(viewer)) return;
 
-        int globalBudget = perPlayerBudget * 2;
-        int globalSent = 0;
+                Location mapLoc = MapIndex.get(mapId);
+                if (mapLoc == null) return;
 
-        for (Player player : players) {
-            if (!player.isOnline()) continue;
-            if (globalSent >= globalBudget) break;
+                double dx = mapLoc.getX() - player.x;
+                double dy = mapLoc.getY() - player.y;
+                double dz = mapLoc.getZ() - player.z;
+                double distSq = dx * dx + dy * dy + dz * dz;
+                if (distSq > renderDistSq) return;
+
+                double dist = Math.sqrt(distSq);
+                double facing = dist > 0 ? (dx * player.lookX + dy * player.lookY + dz * player.lookZ) / dist : 1;
+                candidates.add(new Candidate(renderer, priority(dist, facing, viewer.missed(renderer.id))));
+            });
+
+            for (int i = 0, size = unplaced.size(); i < size; i++) {
+                GifRenderer renderer = unplaced.get(i);
+                if (renderer.isBehind(viewer)) {
+                    candidates.add(new Candidate(renderer, priority(renderDist, 0, viewer.missed(renderer.id))));
+                }
+            }
 
-            Location playerLoc = player.getLocation();
-            World playerWorld = player.getWorld();
-            int sent = 0;
+            if (candidates.isEmpty()) {
+                viewer.deficit = 0;
+                continue;
+            }
+            candidates.sort(Comparator.comparingDouble(c -> c.priority));
+            queues.add(new PlayerQueue(player, viewer, candidates));
+        }
 
-            for (int i = 0, size = dirtyRenderers.size(); i < size; i++) {
-                if (sent >= perPlayerBudget) break;
-                if (globalSent >= globalBudget) break;
+        int count = queues.size();
+        if (count == 0) return plan;
 
-                GifRenderer renderer = dirtyRenderers.get(i);
+        int start = 0;
+        for (int q = 0; q < count; q++) {
+            if (queues.get(q).player.uuid.equals(nextFirst)) {
+                start = q;
+                break;
+            }
+        }
+        nextFirst = null;
 
-                @SuppressWarnings("deprecation")
-                int mapID = renderer.mapView.getId();
-                Location mapLoc = MAP_LOCATIONS.get(mapID);
+        int quantum = Math.max(1, globalBudget / count);
+        int globalSent = 0;
+        boolean progress = true;
 
-                if (mapLoc != null) {
-                    World mapWorld = mapLoc.getWorld();
-                    if (mapWorld == null || !playerWorld.equals(mapWorld)) continue;
+        while (progress && nextFirst == null) {
+            progress = false;
+            for (int k = 0; k < count; k++) {
+                PlayerQueue queue = queues.get((start + k) % count);
+                if (queue.next >= queue.candidates.size() || queue.sent >= perPlayerBudget) continue;
 
-                    double dx = playerLoc.getX() - mapLoc.getX();
-                    double dy = playerLoc.getY() - mapLoc.getY();
-                    double dz = playerLoc.getZ() - mapLoc.getZ();
-                    double distSq = dx * dx + dy * dy + dz * dz;
-                    if (distSq > renderDistSq) continue;
+                if (globalSent >= globalBudget) {
+                    nextFirst = queue.player.uuid;
+                    break;
                 }
 
-                try {
-                    player.sendMap(renderer.mapView);
-                    sent++;
+                Viewer viewer = queue.viewer;
+                viewer.deficit = Math.min(viewer.deficit + quantum, perPlayerBudget);
+                while (viewer.deficit > 0 && queue.next < queue.candidates.size()
+                        && queue.sent < perPlayerBudget && globalSent < globalBudget) {
+                    GifRenderer renderer = queue.candidates.get(queue.next++).renderer;
+                    plan.add(new Send(queue.player.player, viewer, renderer));
+                    // Recorded now as well, so a plan made before the main thread gets to
+                    // this one does not repeat it.
+                    viewer.seen.put(renderer.id, renderer.slotAt(renderer.currentFrame()));
+                    viewer.missedFrames.remove(renderer.id);
+                    viewer.deficit--;
+                    queue.sent++;
                     globalSent++;
-                } catch (Exception ignored) {}
+                    progress = true;
+                }
             }
         }
 
-        for (int i = 0, size = dirtyRenderers.size(); i < size; i++) {
-            dirtyRenderers.get(i).needsRender = false;
+        for (int q = 0; q < count; q++) {
+            PlayerQueue queue = queues.get(q);
+            List<Candidate> candidates = queue.candidates;
+            if (queue.next >= candidates.size()) {
+                queue.viewer.deficit = 0;
+                continue;
+            }
+            for (int i = queue.next; i < candidates.size(); i++) {
+                queue.viewer.missedFrames.merge(candidates.get(i).renderer.id, 1, Integer::sum);
+            }
+            planDue = true;
+        }
+        return plan;
+    }
+
+    // Lower goes first: near maps, then maps in front of the player rather than beside or
+    // behind them, with every plan a map is passed over making it more urgent.
+    private static double priority(double dist, double facing, int missed) {
+        double prominence = facing > 0.5 ? 1.0 : (facing > 0 ? 1.5 : 3.0);
+        return (dist + 1) * prominence / (1 + missed);
+    }
+
+    private boolean isBehind(Viewer viewer) {
+        int frame = currentFrame();
+        int slot = slotAt(frame);
+        if (slot < 0) return false;
+
+        Integer seen = viewer.seen.get(id);
+        return (seen == null || seen != slot) && frames.isLoaded(frame);
+    }
+
+    private static final class Candidate {
+        final GifRenderer renderer;
+        final double priority;
+
+        Candidate(GifRenderer renderer, double priority) {
+            this.renderer = renderer;
+            this.priority = priority;
+        }
+    }
+
+    private static final class PlayerQueue {
+        final PlayerState player;
+        final Viewer viewer;
+        final List<Candidate> candidates;
+        int next;
+        int sent;
+
+        PlayerQueue(PlayerState player, Viewer viewer, List<Candidate> candidates) {
+            this.player = player;
+            this.viewer = viewer;
+            this.candidates = candidates;
+        }
+    }
+
+    // Taken on the main thread, so the animator never calls into the player itself.
+    private static final class PlayerState {
+        final Player player;
+        final UUID uuid;
+        final int entityId;
+        final UUID world;
+        final double x, y, z;
+        final double lookX, lookY, lookZ;
+
+        PlayerState(Player player) {
+            Location location = player.getLocation();
+            Vector look = location.getDirection();
+            this.player = player;
+            this.uuid = player.getUniqueId();
+            this.entityId = player.getEntityId();
+            this.world = player.getWorld().getUID();
+            this.x = location.getX();
+            this.y = location.getY();
+            this.z = location.getZ();
+            this.lookX = look.getX();
+            this.lookY = look.getY();
+            this.lookZ = look.getZ();
+        }
+    }
+
+    private static final class Send {
+        final Player player;
+        final Viewer viewer;
+        final GifRenderer renderer;
+
+        Send(Player player, Viewer viewer, GifRenderer renderer) {
+            this.player = player;
+            this.viewer = viewer;
+            this.renderer = renderer;
+        }
+    }
+
+    // What a player was last sent, by renderer id. A new login or a world change leaves the
+    // client without the old map data, so either one starts over. Missed counts and the
+    // round-robin credit are only touched by the animator.
+    private static final class Viewer {
+        final int entityId;
+        final UUID world;
+        final Map<Integer, Integer> seen = new ConcurrentHashMap<>();
+        final Map<Integer, Integer> missedFrames = new HashMap<>();
+        int deficit;
+
+        Viewer(int entityId, UUID world) {
+            this.entityId = entityId;
+            this.world = world;
+        }
+
+        int missed(int rendererId) {
+            return missedFrames.getOrDefault(rendererId, 0);
+        }
+    }
+
+    private static Viewer viewerOf(PlayerState player) {
+        Viewer viewer = VIEWERS.get(player.uuid);
+        if (viewer == null || viewer.entityId != player.entityId || !viewer.world.equals(player.world)) {
+            viewer = new Viewer(player.entityId, player.world);
+            VIEWERS.put(player.uuid, viewer);
+        }
+        return viewer;
+    }
+
+    private static void pruneViewers(List<PlayerState> players) {
+        if (VIEWERS.isEmpty()) return;
+
+        Set<UUID> online = new HashSet<>();
+        for (PlayerState player : players) {
+            online.add(player.uuid);
+        }
+        VIEWERS.keySet().retainAll(online);
+
+        Set<Integer> live = new HashSet<>();
+        for (GifRenderer renderer : RENDERERS.values()) {
+            live.add(renderer.id);
+        }
+        for (Viewer viewer : VIEWERS.values()) {
+            viewer.seen.keySet().retainAll(live);
+            viewer.missedFrames.keySet().retainAll(live);
+        }
+    }
+
+    // Frames that were still decoding when a cell was drawn have arrived; draw again.
+    static void markDirty(long syncId) {
+        SyncGroup group = SYNC_GROUPS.get(syncId);
+        if (group != null) {
+            group.markAllDirty();
         }
     }
 
@@ -276,25 +579,32 @@ public final class GifRenderer extends MapRenderer {
 
     public static void registerMapLocation(int mapId, Location location) {
         if (location != null) {
-            MAP_LOCATIONS.put(mapId, location.clone());
+            MapIndex.put(mapId, location.clone());
         }
     }
 
+    public static void unloadWorld(World world) {
+        MapIndex.unloadWorld(world.getUID());
+    }
+
+    public static void loadWorld(World world) {
+        MapIndex.loadWorld(world.getUID());
+    }
+
     public static int getActiveCount() {
         return RENDERERS.size();
     }
 
-    public GifRenderer(List<byte[]> frameList, List<Integer> delays, long syncID) {
+    public GifRenderer(FrameStore.Frames frames, List<Integer> delays, long syncID) {
         super(false);
 
         this.id = ID_COUNTER.incrementAndGet();
         this.syncId = syncID;
-        this.frameCount = frameList.size();
-
-        this.frames = new byte[frameCount][];
-        for (int i = 0; i < frameCount; i++) {
-            this.frames[i] = frameList.get(i);
-        }
+        this.frames = frames;
+        this.frameCount = frames.size();
+        this.dirtyRects = new int[frameCount];
+        this.patches = new short[frameCount][];
+        Arrays.fill(dirtyRects, RECT_UNKNOWN);
 
         SyncGroup group = SYNC_GROUPS.computeIfAbsent(syncID, k -> new SyncGroup(syncID, delays));
         group.renderers.add(this);
@@ -304,6 +614,10 @@ public final class GifRenderer extends MapRenderer {
         }
     }
 
+    public GifRenderer(List<byte[]> frames, List<Integer> delays, long syncId) {
+        this(FrameStore.allocate(frames), delays, syncId);
+    }
+
     public GifRenderer(List<byte[]> frames, List<Integer> delays) {
         this(frames, delays, System.currentTimeMillis());
     }
@@ -331,25 +645,45 @@ public final class GifRenderer extends MapRenderer {
             setMapView(map);
         }
 
-        SyncGroup group = SYNC_GROUPS.get(syncId);
-        int frameIndex = (group != null) ? group.getCurrentFrame() : 0;
+        int frameIndex = currentFrame();
 
-        if (frameIndex < 0 || frameIndex >= frameCount) {
-            frameIndex = 0;
+        if (frameIndex == lastRenderedFrame) {
+            return;
         }
 
-        if (frameIndex == lastRenderedFrame) {
+        if (!changesAt(frameIndex)) {
+            lastRenderedFrame = frameIndex;
             return;
         }
 
-        byte[] data = frames[frameIndex];
-        if (data == null || data.length < EmageCore.MAP_SIZE) {
+        byte[] data = FrameStore.scratch();
+        if (!frames.copy(frameIndex, data)) {
             return;
         }
 
-        for (int y = 0; y < 128; y++) {
+        // The canvas still holds the last frame drawn; when that is the frame just before
+        // this one, only what differs between the two is written. Any other jump (a sync
+        // reset, frames skipped while decoding) redraws the whole frame.
+        int rect = RECT_FULL;
+        int last = lastRenderedFrame;
+        int previous = frameIndex > 0 ? frameIndex - 1 : frameCount - 1;
+        if (last >= 0 && last < frameCount && frames.slot(last) == frames.slot(previous)) {
+            rect = dirtyRect(frameIndex, previous, data);
+
+            short[] patch = patches[frameIndex];
+            if (patch != null) {
+                for (short index : patch) {
+                    canvas.setPixel(index & 127, index >>> 7, data[index]);
+                }
+                lastRenderedFrame = frameIndex;
+                return;
+            }
+        }
+
+        int x0 = rect & 0xFF, y0 = (rect >>> 8) & 0xFF, x1 = (rect >>> 16) & 0xFF, y1 = rect >>> 24;
+        for (int y = y0; y < y1; y++) {
             int offset = y << 7;
-            for (int x = 0; x < 128; x++) {
+            for (int x = x0; x < x1; x++) {
                 canvas.setPixel(x, y, data[offset + x]);
             }
         }
@@ -357,6 +691,66 @@ public final class GifRenderer extends MapRenderer {
         lastRenderedFrame = frameIndex;
     }
 
+    private int dirtyRect(int frameIndex, int previous, byte[] data) {
+        int rect = dirtyRects[frameIndex];
+        if (rect != RECT_UNKNOWN) return rect;
+
+        byte[] before = FrameStore.previousScratch();
+        if (!frames.copy(previous, before)) return RECT_FULL;
+
+        int x0 = 128, y0 = 128, x1 = 0, y1 = 0;
+        int changed = 0;
+        for (int y = 0; y < 128; y++) {
+            int offset = y << 7;
+            for (int x = 0; x < 128; x++) {
+                if (data[offset + x] != before[offset + x]) {
+                    if (x < x0) x0 = x;
+                    if (x >= x1) x1 = x + 1;
+                    if (y < y0) y0 = y;
+                    y1 = y + 1;
+                    changed++;
+                }
+            }
+        }
+
+        // Same cut-off as the sparse deltas in storage; past it, or when the changes fill
+        // most of their rectangle anyway, the rectangle is cheaper to keep and to draw.
+        if (changed > 0 && changed < MAX_PATCH_PIXELS && changed * 2 < (x1 - x0) * (y1 - y0)) {
+            short[] patch = new short[changed];
+            for (int i = 0, n = 0; n < changed; i++) {
+                if (data[i] != before[i]) {
+                    patch[n++] = (short) i;
+                }
+            }
+            patches[frameIndex] = patch;
+        }
+
+        rect = x1 == 0 ? RECT_EMPTY : x0 | y0 << 8 | x1 << 16 | y1 << 24;
+        dirtyRects[frameIndex] = rect;
+        return rect;
+    }
+
+    private int currentFrame() {
+        SyncGroup group = SYNC_GROUPS.get(syncId);
+        int frameIndex = (group != null) ? group.getCurrentFrame() : 0;
+        return frameIndex < 0 || frameIndex >= frameCount ? 0 : frameIndex;
+    }
+
+    @SuppressWarnings("deprecation")
+    private int mapId() {
+        return mapView.getId();
+    }
+
+    private int slotAt(int frameIndex) {
+        return frameIndex >= 0 && frameIndex < frameCount ? frames.slot(frameIndex) : -1;
+    }
+
+    private boolean changesAt(int frameIndex) {
+        int last = lastRenderedFrame;
+        if (last < 0 || last >= frameCount || frameIndex < 0 || frameIndex >= frameCount) return true;
+        return frames.slot(frameIndex) != frames.slot(last);
+    }
+
     public void remove() {
         SyncGroup group = SYNC_GROUPS.get(syncId);
         if (group != null) {
@@ -370,7 +764,7 @@ public final class GifRenderer extends MapRenderer {
             @SuppressWarnings("deprecation")
             int mapID = mapView.getId();
             RENDERERS.remove(mapID);
-            MAP_LOCATIONS.remove(mapID);
+            MapIndex.remove(mapID);
         }
 
         if (config != null) {
@@ -404,7 +798,7 @@ public final class GifRenderer extends MapRenderer {
     }
 
     public List<byte[]> getFrames() {
-        return Collections.unmodifiableList(Arrays.asList(frames));
+        return Collections.unmodifiableList(frames.toList());
     }
 
     public List<Integer> getDelays() {
@@ -0,0 +1,122 @@
+package net.edithymaster.emage.Render;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+// Animated map positions bucketed by world and chunk column, so finding the maps around a
+// player costs a handful of bucket lookups instead of a pass over every map. Worlds are
+// keyed by UID; a Location only holds its world weakly, and so must this.
+final class MapIndex {
+
+    private MapIndex() {}
+
+    private static final Map<UUID, Map<Long, Set<Integer>>> WORLDS = new ConcurrentHashMap<>();
+    private static final Map<Integer, Placed> PLACED = new ConcurrentHashMap<>();
+
+    static void put(int mapId, Location location) {
+        World world = location.getWorld();
+        Placed placed = new Placed(location, world != null ? world.getUID() : null);
+
+        Placed old = PLACED.put(mapId, placed);
+        if (old != null) {
+            unlink(mapId, old);
+        }
+        link(mapId, placed);
+    }
+
+    static Location get(int mapId) {
+        Placed placed = PLACED.get(mapId);
+        return placed != null ? placed.location : null;
+    }
+
+    static void remove(int mapId) {
+        Placed old = PLACED.remove(mapId);
+        if (old != null) {
+            unlink(mapId, old);
+        }
+    }
+
+    static void clear() {
+        WORLDS.clear();
+        PLACED.clear();
+    }
+
+    // An unloaded world's maps stay placed, so they are not sent to everybody as maps
+    // without a position, but nobody can be near them until the world is back.
+    static void unloadWorld(UUID world) {
+        WORLDS.remove(world);
+    }
+
+    static void loadWorld(UUID world) {
+        PLACED.forEach((mapId, placed) -> {
+            if (world.equals(placed.world)) {
+                link(mapId, placed);
+            }
+        });
+    }
+
+    // Every map in a chunk within range of the position; callers still check the exact
+    // distance, this only narrows the candidates.
+    static void forEachNear(UUID world, double x, double z, double range, IntConsumer action) {
+        Map<Long, Set<Integer>> chunks = WORLDS.get(world);
+        if (chunks == null) return;
+
+        int minX = (int) Math.floor(x - range) >> 4;
+        int maxX = (int) Math.floor(x + range) >> 4;
+        int minZ = (int) Math.floor(z - range) >> 4;
+        int maxZ = (int) Math.floor(z + range) >> 4;
+
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cz = minZ; cz <= maxZ; cz++) {
+                Set<Integer> ids = chunks.get(key(cx, cz));
+                if (ids == null) continue;
+                for (int mapId : ids) {
+                    action.accept(mapId);
+                }
+            }
+        }
+    }
+
+    private static void link(int mapId, Placed placed) {
+        if (placed.world == null) return;
+
+        WORLDS.computeIfAbsent(placed.world, k -> new ConcurrentHashMap<>())
+                .compute(placed.chunk, (k, ids) -> {
+                    if (ids == null) ids = ConcurrentHashMap.newKeySet();
+                    ids.add(mapId);
+                    return ids;
+                });
+    }
+
+    private static void unlink(int mapId, Placed placed) {
+        Map<Long, Set<Integer>> chunks = placed.world != null ? WORLDS.get(placed.world) : null;
+        if (chunks == null) return;
+
+        chunks.computeIfPresent(placed.chunk, (k, ids) -> {
+            ids.remove(mapId);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static long key(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static final class Placed {
+        final Location location;
+        final UUID world;
+        final long chunk;
+
+        Placed(Location location, UUID world) {
+            this.location = location;
+            this.world = world;
+            this.chunk = key(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.edithymaster.emage.Processing;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Compiled on its own with jdk.incubator.vector (see pom.xml), so it only uses what it is
+// handed and nothing else from the plugin.
+final class VectorDither {
+
+    private VectorDither() {}
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int WIDTH = 128;
+
+    private static final ThreadLocal<int[]> TL_INDICES = new ThreadLocal<>();
+
+    static boolean isUsable() {
+        int lanes = SPECIES.length();
+        return lanes >= 4 && WIDTH % lanes == 0;
+    }
+
+    // Byte gathers from the color table have no hardware support, so each row is turned into
+    // cache indices with vector math and the lookups are done in a tight scalar pass.
+    static void ditherOrdered(int[] pixels, int off, int stride, byte[] result,
+                              byte[] cache, int bits, int shift, int[][] orderedOffsets) {
+        int lanes = SPECIES.length();
+        int[] indices = getIndices();
+
+        for (int y = 0; y < WIDTH; y++) {
+            int[] offsets = orderedOffsets[y & 7];
+            int rowOff = y * WIDTH;
+            int srcOff = off + y * stride;
+
+            for (int x = 0; x < WIDTH; x += lanes) {
+                IntVector argb = IntVector.fromArray(SPECIES, pixels, srcOff + x);
+                IntVector t = IntVector.fromArray(SPECIES, offsets, x);
+
+                VectorMask<Integer> transparent = argb.lanewise(VectorOperators.LSHR, 24)
+                        .compare(VectorOperators.LT, 128);
+
+                IntVector r = channel(argb, 16, t, shift);
+                IntVector g = channel(argb, 8, t, shift);
+                IntVector b = channel(argb, 0, t, shift);
+
+                r.lanewise(VectorOperators.LSHL, bits * 2)
+                        .or(g.lanewise(VectorOperators.LSHL, bits))
+                        .or(b)
+                        .blend(-1, transparent)
+                        .intoArray(indices, x);
+            }
+
+            for (int x = 0; x < WIDTH; x++) {
+                int k = indices[x];
+                result[rowOff + x] = k < 0 ? 0 : cache[k];
+            }
+        }
+    }
+
+    private static int[] getIndices() {
+        int[] arr = TL_INDICES.get();
+        if (arr == null) {
+            arr = new int[WIDTH];
+            TL_INDICES.set(arr);
+        }
+        return arr;
+    }
+
+    private static IntVector channel(IntVector argb, int bitOffset, IntVector threshold, int shift) {
+        return argb.lanewise(VectorOperators.LSHR, bitOffset)
+                .and(0xFF)
+                .add(threshold)
+                .max(0)
+                .min(255)
+                .lanewise(VectorOperators.LSHR, shift);
+    }
+}